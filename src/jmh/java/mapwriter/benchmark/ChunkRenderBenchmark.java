@@ -0,0 +1,70 @@
+package mapwriter.benchmark;
+
+import mapwriter.region.ChunkRender;
+import mapwriter.region.MapWriterChunk;
+import mapwriter.util.BlockColors;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Rendering of single chunks into region pixels, as done for every chunk
+ * update and for every chunk of a region rebuild.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkRenderBenchmark {
+
+    private static final int CHUNKS = 64;
+
+    private final BlockColors blockColors = new SyntheticChunks.FixedColors();
+    private final ChunkRender chunkRender = new ChunkRender(this.blockColors, this.blockColors, false);
+    private final MapWriterChunk[] overworldChunks = new MapWriterChunk[CHUNKS];
+    private final MapWriterChunk[] netherChunks = new MapWriterChunk[CHUNKS];
+    private final int[] pixels = new int[16 * 16];
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < CHUNKS; i++) {
+            this.overworldChunks[i] = SyntheticChunks.overworld(i & 7, i >> 3, 1);
+            this.netherChunks[i] = SyntheticChunks.nether(i & 7, i >> 3, 1);
+        }
+    }
+
+    private int nextChunk() {
+        this.next = this.next + 1 & CHUNKS - 1;
+        return this.next;
+    }
+
+    @Benchmark
+    public int renderSurface() {
+        this.chunkRender.renderSurface(this.overworldChunks[this.nextChunk()], this.pixels, 0, 16, false);
+        return this.pixels[0];
+    }
+
+    @Benchmark
+    public int renderSurfaceNether() {
+        this.chunkRender.renderSurface(this.netherChunks[this.nextChunk()], this.pixels, 0, 16, true);
+        return this.pixels[0];
+    }
+
+    @Benchmark
+    public int renderUnderground() {
+        this.chunkRender.renderUnderground(this.overworldChunks[this.nextChunk()], this.pixels, 0, 16, 40, null);
+        return this.pixels[0];
+    }
+}
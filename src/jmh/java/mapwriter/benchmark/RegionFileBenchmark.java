@@ -0,0 +1,112 @@
+package mapwriter.benchmark;
+
+import mapwriter.config.Config;
+import mapwriter.region.MapWriterChunk;
+import mapwriter.region.RegionFile;
+import mapwriter.region.RegionFileCache;
+import net.minecraft.world.DimensionType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Reading and writing chunks of a region file with each compression, as done
+ * when saving chunks and when rebuilding regions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegionFileBenchmark {
+
+    private static final int CHUNKS = 1024;
+
+    @Param({"zlib", "zlibFast", "lz4", "none"})
+    public String compression;
+
+    private final MapWriterChunk[] chunks = new MapWriterChunk[CHUNKS];
+    private final byte[] readBuffer = new byte[1 << 20];
+    private File worldDir;
+    private RegionFileCache regionFileCache;
+    private RegionFile readOnlyFile;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        Config.regionFileCompression = this.compression;
+        this.worldDir = Files.createTempDirectory("mapwriter-benchmark").toFile();
+        this.regionFileCache = new RegionFileCache(this.worldDir);
+        final RegionFile regionFile = this.regionFileCache.acquire(0, 0, DimensionType.OVERWORLD);
+        regionFile.setBatchWrites(true);
+        for (int i = 0; i < CHUNKS; i++) {
+            this.chunks[i] = SyntheticChunks.overworld(i & 31, i >> 5, 1);
+            this.chunks[i].write(this.regionFileCache);
+        }
+        regionFile.setBatchWrites(false);
+        this.regionFileCache.release(regionFile);
+        this.readOnlyFile = this.regionFileCache.acquireReadOnly(0, 0, DimensionType.OVERWORLD);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.regionFileCache.release(this.readOnlyFile);
+        this.regionFileCache.close();
+        final File regionDir = this.regionFileCache.getRegionDir(DimensionType.OVERWORLD);
+        final File[] files = regionDir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        regionDir.delete();
+        this.worldDir.delete();
+    }
+
+    private int nextChunk() {
+        this.next = this.next + 1 & CHUNKS - 1;
+        return this.next;
+    }
+
+    // decompress a chunk without parsing it
+    @Benchmark
+    public int readChunkData() throws IOException {
+        final int i = this.nextChunk();
+        int length = 0;
+        try (DataInputStream dis = this.readOnlyFile.getChunkDataInputStream(i & 31, i >> 5)) {
+            for (int n; (n = dis.read(this.readBuffer)) > 0; ) {
+                length += n;
+            }
+        }
+        return length;
+    }
+
+    // decompress and parse a chunk for rendering
+    @Benchmark
+    public MapWriterChunk readChunk() {
+        final int i = this.nextChunk();
+        return MapWriterChunk.read(i & 31, i >> 5, DimensionType.OVERWORLD, this.readOnlyFile);
+    }
+
+    // serialize, compress and write a chunk
+    @Benchmark
+    public boolean writeChunk() {
+        return this.chunks[this.nextChunk()].write(this.regionFileCache);
+    }
+}
@@ -0,0 +1,57 @@
+package mapwriter.benchmark;
+
+import mapwriter.region.Region;
+import mapwriter.region.SurfacePixels;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Scaling region pixels down to the next zoom level, for a whole region (as
+ * after a region rebuild) and for a single chunk (as after a chunk update).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SurfacePixelsBenchmark {
+
+    private final int[] srcPixels = new int[Region.SIZE * Region.SIZE];
+    private SurfacePixels surfacePixels;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(1);
+        for (int i = 0; i < this.srcPixels.length; i++) {
+            this.srcPixels[i] = random.nextInt();
+        }
+        // the image file does not exist, so the pixels start out empty
+        this.surfacePixels = new SurfacePixels(null, new File("mapwriter-benchmark-missing.png"));
+        this.surfacePixels.getOrAllocatePixels();
+    }
+
+    @Benchmark
+    public int updateScaledRegion() {
+        this.surfacePixels.updateScaled(this.srcPixels, 0, 0, 0, 0, Region.SIZE / 2, Region.SIZE / 2);
+        return this.surfacePixels.getPixels()[0];
+    }
+
+    @Benchmark
+    public int updateScaledChunk() {
+        this.surfacePixels.updateScaled(this.srcPixels, 32, 32, 16, 16, 8, 8);
+        return this.surfacePixels.getPixels()[16 * Region.SIZE + 16];
+    }
+}
@@ -0,0 +1,165 @@
+package mapwriter.benchmark;
+
+import mapwriter.region.MapWriterChunk;
+import mapwriter.util.BlockColors;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.init.Blocks;
+import net.minecraft.init.Bootstrap;
+import net.minecraft.world.DimensionType;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/*
+ * Chunks and block colors for the benchmarks, generated without a running
+ * client.
+ *
+ * The chunks are made of vanilla block states (which needs the block
+ * registry, so Bootstrap is registered first) and are random but repeatable.
+ * The block colors are made up, the real ones need the block textures.
+ */
+public class SyntheticChunks {
+
+    static {
+        Bootstrap.register();
+    }
+
+    private static final int SEA_LEVEL = 63;
+
+    // block colors with a fixed color and tint for each of the states used
+    public static class FixedColors extends BlockColors {
+        private final Map<IBlockState, Integer> colors = new IdentityHashMap<>();
+        private final Map<IBlockState, Integer> tints = new IdentityHashMap<>();
+
+        public FixedColors() {
+            this.colors.put(Blocks.STONE.getDefaultState(), 0xff7d7d7d);
+            this.colors.put(Blocks.DIRT.getDefaultState(), 0xff866043);
+            this.colors.put(Blocks.GRASS.getDefaultState(), 0xff939393);
+            this.colors.put(Blocks.SAND.getDefaultState(), 0xffdbd3a0);
+            this.colors.put(Blocks.BEDROCK.getDefaultState(), 0xff545454);
+            this.colors.put(Blocks.WATER.getDefaultState(), 0x80ffffff);
+            this.colors.put(Blocks.LEAVES.getDefaultState(), 0xc0909090);
+            this.colors.put(Blocks.LOG.getDefaultState(), 0xff665132);
+            this.colors.put(Blocks.RED_FLOWER.getDefaultState(), 0x40b5211b);
+            this.colors.put(Blocks.NETHERRACK.getDefaultState(), 0xff6f3634);
+            this.colors.put(Blocks.LAVA.getDefaultState(), 0xffd45a12);
+            this.colors.put(Blocks.GLOWSTONE.getDefaultState(), 0xffab8654);
+            this.tints.put(Blocks.GRASS.getDefaultState(), TINT_GRASS << 24);
+            this.tints.put(Blocks.LEAVES.getDefaultState(), TINT_FOLIAGE << 24);
+            this.tints.put(Blocks.WATER.getDefaultState(), TINT_WATER << 24);
+        }
+
+        @Override
+        public int getStateColor(IBlockState state) {
+            return this.colors.getOrDefault(state, 0);
+        }
+
+        @Override
+        public int getStateTint(IBlockState state) {
+            return this.tints.getOrDefault(state, TINT_NONE);
+        }
+    }
+
+    // overworld terrain: stone and dirt up to a rolling height, grass on top,
+    // water below sea level, some trees and flowers
+    public static MapWriterChunk overworld(int cx, int cz, long seed) {
+        final Random random = new Random(seed ^ cx * 341873128712L ^ cz * 132897987541L);
+        final ExtendedBlockStorage[] data = new ExtendedBlockStorage[16];
+        for (int z = 0; z < 16; z++) {
+            for (int x = 0; x < 16; x++) {
+                final int wx = (cx << 4) + x;
+                final int wz = (cz << 4) + z;
+                final int height = 64 + (int) (12 * Math.sin(wx * 0.05) * Math.cos(wz * 0.04)) + random.nextInt(2);
+                set(data, x, 0, z, Blocks.BEDROCK.getDefaultState());
+                for (int y = 1; y < height - 3; y++) {
+                    set(data, x, y, z, Blocks.STONE.getDefaultState());
+                }
+                for (int y = Math.max(1, height - 3); y < height; y++) {
+                    set(data, x, y, z, height <= SEA_LEVEL ? Blocks.SAND.getDefaultState() : Blocks.DIRT.getDefaultState());
+                }
+                if (height <= SEA_LEVEL) {
+                    for (int y = height; y <= SEA_LEVEL; y++) {
+                        set(data, x, y, z, Blocks.WATER.getDefaultState());
+                    }
+                } else {
+                    set(data, x, height, z, Blocks.GRASS.getDefaultState());
+                    if (random.nextInt(16) == 0) {
+                        set(data, x, height + 1, z, Blocks.RED_FLOWER.getDefaultState());
+                    }
+                }
+            }
+        }
+        // a few trees
+        for (int i = random.nextInt(3); i > 0; i--) {
+            final int x = 2 + random.nextInt(12);
+            final int z = 2 + random.nextInt(12);
+            final int base = 80;
+            for (int y = base; y < base + 5; y++) {
+                set(data, x, y, z, Blocks.LOG.getDefaultState());
+            }
+            for (int dz = -2; dz <= 2; dz++) {
+                for (int dx = -2; dx <= 2; dx++) {
+                    set(data, x + dx, base + 5, z + dz, Blocks.LEAVES.getDefaultState());
+                    set(data, x + dx, base + 6, z + dz, Blocks.LEAVES.getDefaultState());
+                }
+            }
+        }
+        return new MapWriterChunk(cx, cz, DimensionType.OVERWORLD, data, biomes(random), new HashMap<>());
+    }
+
+    // nether terrain: netherrack with caves between a bedrock floor and
+    // ceiling, lava lakes and glowstone
+    public static MapWriterChunk nether(int cx, int cz, long seed) {
+        final Random random = new Random(seed ^ cx * 341873128712L ^ cz * 132897987541L);
+        final ExtendedBlockStorage[] data = new ExtendedBlockStorage[16];
+        for (int z = 0; z < 16; z++) {
+            for (int x = 0; x < 16; x++) {
+                final int wx = (cx << 4) + x;
+                final int wz = (cz << 4) + z;
+                final int floor = 40 + (int) (10 * Math.sin(wx * 0.07) * Math.cos(wz * 0.06));
+                final int roof = 90 + (int) (8 * Math.cos(wx * 0.05) * Math.sin(wz * 0.08));
+                for (int y = 0; y < 128; y++) {
+                    final IBlockState state;
+                    if (y == 0 || y == 127) {
+                        state = Blocks.BEDROCK.getDefaultState();
+                    } else if (y < floor || y > roof) {
+                        state = Blocks.NETHERRACK.getDefaultState();
+                    } else if (y < 32) {
+                        state = Blocks.LAVA.getDefaultState();
+                    } else {
+                        continue;
+                    }
+                    set(data, x, y, z, state);
+                }
+                if (random.nextInt(32) == 0) {
+                    set(data, x, roof, z, Blocks.GLOWSTONE.getDefaultState());
+                }
+            }
+        }
+        return new MapWriterChunk(cx, cz, DimensionType.NETHER, data, biomes(random), new HashMap<>());
+    }
+
+    private static byte[] biomes(Random random) {
+        final byte[] biomes = new byte[256];
+        final int biome = random.nextInt(7);
+        for (int i = 0; i < biomes.length; i++) {
+            biomes[i] = (byte) biome;
+        }
+        return biomes;
+    }
+
+    private static void set(ExtendedBlockStorage[] data, int x, int y, int z, IBlockState state) {
+        if (x < 0 || x > 15 || z < 0 || z > 15 || y < 0 || y > 255) {
+            return;
+        }
+        ExtendedBlockStorage storage = data[y >> 4];
+        if (storage == null) {
+            storage = new ExtendedBlockStorage(y & ~15, true);
+            data[y >> 4] = storage;
+        }
+        storage.set(x, y & 15, z, state);
+    }
+}
@@ -1,35 +1,60 @@
 package mapwriter;
 
+import mapwriter.config.Config;
 import mapwriter.forge.MapWriterForge;
+import mapwriter.region.RegionFileCodec;
 import mapwriter.tasks.Task;
 
+import java.util.ArrayDeque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // @formatter:off
 /*
  * This class handles executing and managing 'tasks'.
- * A single background thread runs tasks in the sequence they are added (via addTask()).
- * A linked list FIFO queue of every unfinished task is processed every time the processTaskQueue method is called.
- * processTaskQueue checks the task at the front of the queue to see if the background thread has processed it.
- * If it the task is complete processTaskQueue calls the onComplete() method of the task and removes it from the queue.
- * If it is not complete the task is added to the front of the queue again.
- * In this way the tasks are always processed sequentially, in the order they were added to the queue.
+ * A pool of background threads runs tasks added via addTask().
+ * When a background thread finishes a task it adds it to a lock free FIFO queue of completed tasks.
+ * processTaskQueue, called on the main thread every frame, takes tasks from that queue and calls their onComplete()
+ * method, until the queue is empty or its time budget for the frame is used up.
+ * In this way the onComplete() methods are always called sequentially, in the order the tasks finished. A slow task
+ * does not hold up the onComplete() of tasks that finished after it.
  *
  * Tasks are extensions of the base Task class.
  * There are two abstract methods which must be overwritten by the extending class.
  *   void run()
- *     Is executed in the background thread when the executor reaches this task.
+ *     Is executed in a background thread when the executor reaches this task.
  *   void onComplete()
  *     Is called by processTaskQueue() when the task is done (after the run method is complete).
  * 	This method runs in the main thread so is a good place to copy the results of the run() method.
  *
- * The run() method of a task added to the queue is guaranteed to be run before the run() method of the next task
- * added. Likewise the onComplete() method of the first task is guaranteed to be run before the onComplete() of the second
+ * Every task has a priority (Task.getPriority()). Tasks wait in one FIFO lane per priority, and a free thread takes
+ * the next task from the highest priority lane that has one it can start: map views the player is waiting for come
+ * first, then chunk renders, then saving and everything else. A task that has waited for more than MAX_WAIT_NANOS
+ * is started before the tasks of higher priorities, so saves still make progress while the map is busy.
+ *
+ * Every task also has a sequence key (Task.getSequenceKey()), e.g. the region it works on.
+ * Two tasks with the same key never run at the same time. If they also have the same priority, the run() method of
+ * the one added first finishes before the run() method of the other starts. Tasks with different keys may run at
+ * the same time, in any order.
+ * Tasks with the key Task.SEQUENTIAL (the default) run on their own: their run() method starts after the run()
+ * methods of all tasks of the same or a higher priority added before them have finished, and no other task runs
+ * until it has finished. An overdue lane never moves them past those tasks. Tasks of the same or a lower priority
+ * added after them start after that, and so do tasks of a higher priority once they have waited for more than
+ * MAX_WAIT_NANOS.
+ *
+ * So if the run() method of the first task is guaranteed to finish before the run() method of the second task
+ * starts, the onComplete() method of the first task is guaranteed to be run before the onComplete() of the second
  * task. However the run() method of any class added after a Task may be executed before the onComplete() method of
  * the earlier Task is called.
  *
@@ -44,29 +69,120 @@ import java.util.concurrent.Future;
  * 	Task3.run()
  * 	  Task2.onComplete()
  * 	  Task3.onComplete()
+ *
+ * close() waits for all tasks added before it to run, so that all chunks are saved before the world is closed.
  */
 // @formatter:on
 
 public class BackgroundExecutor {
 
+    // the future of a task, tells the executor when the task is done so that
+    // the tasks waiting for it can start
+    private class TaskFuture extends FutureTask<Void> {
+        final Task task;
+        // the sequence key and priority of the task when it was added
+        final long key;
+        final Task.Priority priority;
+        // the order in which the tasks were added, and when
+        final long sequence;
+        final long addTime;
+
+        TaskFuture(Task task, long sequence) {
+            super(task, null);
+            this.task = task;
+            this.key = task.getSequenceKey();
+            this.priority = task.getPriority();
+            this.sequence = sequence;
+            this.addTime = System.nanoTime();
+        }
+
+        @Override
+        protected void done() {
+            // publish the task before starting the tasks waiting for it, so
+            // that their onComplete() is called after this one
+            BackgroundExecutor.this.completedTasks.add(this.task);
+            BackgroundExecutor.this.taskFinished(this);
+        }
+    }
+
+    // the tasks of one priority that have been added but not started yet
+    private static class Lane {
+        // in the order they were added
+        final LinkedList<TaskFuture> tasks = new LinkedList<>();
+        // the sequential tasks among them, in the same order. kept up to date
+        // when tasks are added and removed, so that the first one is found
+        // without going through the lane.
+        final ArrayDeque<TaskFuture> sequentialTasks = new ArrayDeque<>();
+    }
+
+    private static final Task.Priority[] PRIORITIES = Task.Priority.values();
+
+    // tasks that waited this long are started before tasks of higher
+    // priorities
+    private static final long MAX_WAIT_NANOS = TimeUnit.SECONDS.toNanos(2);
+    // how long close() waits for the remaining tasks
+    private static final long CLOSE_TIMEOUT_SECONDS = 60;
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
     private final ExecutorService executor;
-    private final LinkedList<Task> taskQueue;
+    private final int threads;
+    // tasks whose onComplete() has not been called yet, only used on the
+    // main thread
+    private final Set<Task> unfinishedTasks = new HashSet<>();
+    // tasks that are done, waiting for onComplete()
+    private final Queue<Task> completedTasks = new ConcurrentLinkedQueue<>();
     private boolean closed = false;
     private boolean doDiag = true;
 
+    // the fields below are only used while holding this lock
+    private final Object scheduleLock = new Object();
+    // tasks that have been added but not started yet, indexed by priority
+    private final Lane[] lanes = new Lane[PRIORITIES.length];
+    // the keys of the running keyed tasks, there is at most one per thread
+    private final long[] runningKeys;
+    private int runningKeyCount = 0;
+    private int runningTasks = 0;
+    private boolean sequentialTaskRunning = false;
+    private long taskSequence = 0;
+    // shut the thread pool down once all tasks are done
+    private boolean shutdownWhenIdle = false;
+
     public BackgroundExecutor() {
 
-        this.executor = Executors.newSingleThreadExecutor();
-        this.taskQueue = new LinkedList<>();
+        this.threads = Math.max(1, Config.backgroundThreads);
+        this.executor = Executors.newFixedThreadPool(this.threads, runnable -> {
+            final Thread thread = new Thread(() -> {
+                try {
+                    runnable.run();
+                } finally {
+                    // free the compression buffers of this thread
+                    RegionFileCodec.endCurrent();
+                }
+            }, "MapWriter background " + THREAD_COUNT.incrementAndGet());
+            return thread;
+        });
+        this.runningKeys = new long[this.threads];
+        for (int i = 0; i < this.lanes.length; i++) {
+            this.lanes[i] = new Lane();
+        }
     }
 
     // add a task to the queue
     public boolean addTask(Task task) {
         if (!this.closed) {
             if (!task.checkForDuplicate()) {
-                final Future<?> future = this.executor.submit(task);
-                task.setFuture(future);
-                this.taskQueue.add(task);
+                this.unfinishedTasks.add(task);
+                synchronized (this.scheduleLock) {
+                    final TaskFuture future = new TaskFuture(task, this.taskSequence++);
+                    task.setFuture(future);
+                    final Lane lane = this.lanes[future.priority.ordinal()];
+                    lane.tasks.add(future);
+                    if (future.key == Task.SEQUENTIAL) {
+                        lane.sequentialTasks.add(future);
+                    }
+                    this.startWaitingTasks();
+                }
             }
 
             // bit for diagnostics on task left to optimize code
@@ -89,11 +205,16 @@ public class BackgroundExecutor {
         boolean error = true;
         try {
             this.taskLeftPerType();
-            // stop accepting new tasks
-            this.executor.shutdown();
+            // stop the threads once the remaining tasks have run
+            synchronized (this.scheduleLock) {
+                this.shutdownWhenIdle = true;
+                this.shutdownIfIdle();
+            }
+            // wait for them, saves must not be left behind
+            final boolean terminated = this.executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
             // process remaining tasks
             this.processRemainingTasks(50, 5);
-            error = false;
+            error = !terminated;
         } catch (final Exception e) {
             MapWriterForge.LOGGER.info("error: IO task was interrupted during shutdown");
             MapWriterForge.LOGGER.trace(e);
@@ -104,8 +225,8 @@ public class BackgroundExecutor {
 
     public boolean processRemainingTasks(int attempts, int delay) {
 
-        while (!this.taskQueue.isEmpty() && attempts > 0) {
-            if (this.processTaskQueue()) {
+        while (!this.unfinishedTasks.isEmpty() && attempts > 0) {
+            if (this.processTaskQueue(Long.MAX_VALUE) == 0) {
                 try {
                     Thread.sleep(delay);
                 } catch (final Exception e) {
@@ -117,36 +238,180 @@ public class BackgroundExecutor {
         return attempts <= 0;
     }
 
-    // Pop a Task entry from the task queue and check if the task's thread has
-    // finished.
-    // If it has completed then call onComplete for the task.
-    // If it has not completed then push the task back on the queue.
-    public boolean processTaskQueue() {
-        boolean processed = false;
-        final Task task = this.taskQueue.poll();
-        if (task != null) {
-            if (task.isDone()) {
-                task.printException();
-                task.onComplete();
-
-                processed = true;
-            } else {
-                // put entry back on top of queue
-                this.taskQueue.push(task);
+    // call onComplete() for the tasks that are done, in the order they
+    // finished, until there are none left or maxNanos nanoseconds have
+    // passed. at least one task is processed if there is one.
+    // returns the number of tasks processed.
+    public int processTaskQueue(long maxNanos) {
+        final long start = System.nanoTime();
+        int processed = 0;
+        Task task;
+        while ((task = this.completedTasks.poll()) != null) {
+            this.unfinishedTasks.remove(task);
+            task.printException();
+            task.onComplete();
+            processed++;
+            if (System.nanoTime() - start >= maxNanos) {
+                break;
             }
         }
-        return !processed;
+        return processed;
     }
 
     public int tasksRemaining() {
 
-        return this.taskQueue.size();
+        return this.unfinishedTasks.size();
+    }
+
+    // start waiting tasks while there are free threads. must hold
+    // scheduleLock.
+    private void startWaitingTasks() {
+        while (!this.sequentialTaskRunning && this.runningTasks < this.threads) {
+            final TaskFuture future = this.takeNextTask();
+            if (future == null) {
+                break;
+            }
+            this.runningTasks++;
+            if (future.key == Task.SEQUENTIAL) {
+                this.sequentialTaskRunning = true;
+            } else {
+                this.runningKeys[this.runningKeyCount++] = future.key;
+            }
+            this.executor.execute(future);
+        }
+    }
+
+    // remove and return the next task that can be started now, or null if
+    // there is none. must hold scheduleLock.
+    private TaskFuture takeNextTask() {
+        final long now = System.nanoTime();
+
+        // the first sequential task of each lane. it starts once the tasks
+        // of the same or higher priorities added before it have finished,
+        // even if a lane of a lower priority is overdue.
+        for (final Task.Priority priority : PRIORITIES) {
+            final Lane lane = this.lanes[priority.ordinal()];
+            final TaskFuture barrier = lane.sequentialTasks.peek();
+            if (barrier != null && barrier == lane.tasks.peek() && this.isOldestUpTo(barrier, priority)) {
+                if (this.runningTasks == 0) {
+                    lane.tasks.remove();
+                    lane.sequentialTasks.remove();
+                    return barrier;
+                }
+                // start nothing else until the running tasks are done
+                return null;
+            }
+        }
+
+        // the lane whose first task waited too long, the first task that
+        // was added if there are several, goes before the others
+        Lane overdueLane = null;
+        for (final Lane lane : this.lanes) {
+            final TaskFuture first = lane.tasks.peek();
+            if (first != null && now - first.addTime >= MAX_WAIT_NANOS && (overdueLane == null || first.sequence < overdueLane.tasks.peek().sequence)) {
+                overdueLane = lane;
+            }
+        }
+
+        for (int i = -1; i < this.lanes.length; i++) {
+            final Lane lane = i < 0 ? overdueLane : this.lanes[i];
+            if (lane == null || i >= 0 && lane == overdueLane) {
+                continue;
+            }
+            final TaskFuture first = lane.tasks.peek();
+            if (first == null) {
+                continue;
+            }
+            // tasks added after a waiting sequential task of the same or a
+            // higher priority wait for it. so do tasks added after one of a
+            // lower priority that has waited too long.
+            long lastSequence = Long.MAX_VALUE;
+            for (final Lane other : this.lanes) {
+                final TaskFuture barrier = other.sequentialTasks.peek();
+                if (barrier != null && (barrier.priority.compareTo(first.priority) <= 0 || now - barrier.addTime >= MAX_WAIT_NANOS)) {
+                    lastSequence = Math.min(lastSequence, barrier.sequence);
+                }
+            }
+            // the first waiting task with a key can only be held up by a
+            // running task with that key, and the later tasks with the key
+            // wait for it. so the first task whose key is not running can
+            // start.
+            for (final Iterator<TaskFuture> it = lane.tasks.iterator(); it.hasNext(); ) {
+                final TaskFuture future = it.next();
+                if (future.sequence >= lastSequence) {
+                    // the rest of the lane was added after it
+                    break;
+                }
+                if (!this.isKeyRunning(future.key)) {
+                    it.remove();
+                    return future;
+                }
+            }
+        }
+        return null;
+    }
+
+    // must hold scheduleLock
+    private boolean isKeyRunning(long key) {
+        for (int i = 0; i < this.runningKeyCount; i++) {
+            if (this.runningKeys[i] == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // true if no task of the given or a higher priority added before the
+    // task is still waiting. must hold scheduleLock.
+    private boolean isOldestUpTo(TaskFuture future, Task.Priority priority) {
+        for (final Task.Priority p : PRIORITIES) {
+            if (p.compareTo(priority) > 0) {
+                break;
+            }
+            final TaskFuture first = this.lanes[p.ordinal()].tasks.peek();
+            if (first != null && first.sequence < future.sequence) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // must hold scheduleLock
+    private void shutdownIfIdle() {
+        if (this.shutdownWhenIdle && this.runningTasks == 0) {
+            for (final Lane lane : this.lanes) {
+                if (!lane.tasks.isEmpty()) {
+                    return;
+                }
+            }
+            this.executor.shutdown();
+        }
+    }
+
+    // called on the background thread when a task is done, starts the tasks
+    // that were waiting for it
+    private void taskFinished(TaskFuture future) {
+        synchronized (this.scheduleLock) {
+            this.runningTasks--;
+            if (future.key == Task.SEQUENTIAL) {
+                this.sequentialTaskRunning = false;
+            } else {
+                for (int i = 0; i < this.runningKeyCount; i++) {
+                    if (this.runningKeys[i] == future.key) {
+                        this.runningKeys[i] = this.runningKeys[--this.runningKeyCount];
+                        break;
+                    }
+                }
+            }
+            this.startWaitingTasks();
+            this.shutdownIfIdle();
+        }
     }
 
     private void taskLeftPerType() {
         final HashMap<String, Object> tasksLeft = new HashMap<>();
 
-        for (final Task t : this.taskQueue) {
+        for (final Task t : this.unfinishedTasks) {
             final String className = t.getClass().toString();
             if (tasksLeft.containsKey(className)) {
                 tasksLeft.put(className, (Integer) tasksLeft.get(className) + 1);
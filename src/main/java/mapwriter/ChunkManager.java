@@ -2,8 +2,11 @@ package mapwriter;
 
 import mapwriter.config.Config;
 import mapwriter.region.MapWriterChunk;
+import mapwriter.region.Region;
 import mapwriter.tasks.TaskSaveChunk;
+import mapwriter.tasks.TaskSaveChunkBatch;
 import mapwriter.tasks.TaskUpdateSurfaceChunks;
+import mapwriter.tasks.TaskUpdateZoomLevels;
 import mapwriter.util.Utils;
 import net.minecraft.client.Minecraft;
 import net.minecraft.tileentity.TileEntity;
@@ -11,8 +14,10 @@ import net.minecraft.util.math.BlockPos;
 import net.minecraft.world.chunk.Chunk;
 import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class ChunkManager {
@@ -76,17 +81,26 @@ public class ChunkManager {
     }
 
     public synchronized void saveChunks() {
-        for (final Map.Entry<Chunk, Integer> entry : this.chunkMap.entrySet()) {
-            final int flags = entry.getValue();
-            if ((flags & ChunkManager.VIEWED_FLAG) != 0) {
-                this.addSaveChunkTask(entry.getKey());
+        if (this.isRegionFileOutputEnabled()) {
+            // save the chunks of each region in one task so the region file
+            // writes can be batched, and different regions saved at once
+            final Map<Long, List<MapWriterChunk>> regionChunks = new HashMap<>();
+            for (final Map.Entry<Chunk, Integer> entry : this.chunkMap.entrySet()) {
+                final int flags = entry.getValue();
+                if ((flags & ChunkManager.VIEWED_FLAG) != 0 && !entry.getKey().isEmpty()) {
+                    final MapWriterChunk mwChunk = copyToMwChunk(entry.getKey());
+                    regionChunks.computeIfAbsent(Region.getKey(mwChunk.x << 4, mwChunk.z << 4, 0, mwChunk.dimension), key -> new ArrayList<>()).add(mwChunk);
+                }
+            }
+            for (final List<MapWriterChunk> chunks : regionChunks.values()) {
+                this.mw.executor.addTask(new TaskSaveChunkBatch(chunks, this.mw.regionManager));
             }
         }
     }
 
     public void updateSurfaceChunks() {
         final int chunksToUpdate = Math.min(this.chunkMap.size(), Config.chunksPerTick);
-        final MapWriterChunk[] chunkArray = new MapWriterChunk[chunksToUpdate];
+        final Map<Long, List<MapWriterChunk>> regionChunks = new HashMap<>();
         for (int i = 0; i < chunksToUpdate; i++) {
             final Map.Entry<Chunk, Integer> entry = this.chunkMap.getNextEntry();
             if (entry != null) {
@@ -103,16 +117,25 @@ public class ChunkManager {
                 entry.setValue(flags);
 
                 if ((flags & ChunkManager.VISIBLE_FLAG) != 0) {
-                    chunkArray[i] = copyToMwChunk(chunk);
-                    this.mw.executor.addTask(new TaskUpdateSurfaceChunks(this.mw, chunkArray[i]));
-                } else {
-                    chunkArray[i] = null;
+                    final MapWriterChunk mwChunk = copyToMwChunk(chunk);
+                    regionChunks.computeIfAbsent(Region.getKey(mwChunk.x << 4, mwChunk.z << 4, 0, mwChunk.dimension), key -> new ArrayList<>()).add(mwChunk);
                 }
             }
         }
 
-        // this.mw.executor.addTask(new TaskUpdateSurfaceChunks(this.mw,
-        // chunkArray));
+        // one task per region, so the region and the texture are only
+        // updated once for the chunks of this tick
+        for (final List<MapWriterChunk> chunks : regionChunks.values()) {
+            this.mw.executor.addTask(new TaskUpdateSurfaceChunks(this.mw, chunks));
+        }
+
+        // one task per region, so the zoom levels of different regions are
+        // updated at the same time
+        if (this.mw.regionManager.isZoomUpdateDue()) {
+            for (final Region region : this.mw.regionManager.takeDirtyRegions()) {
+                this.mw.executor.addTask(new TaskUpdateZoomLevels(this.mw, region));
+            }
+        }
     }
 
     public void updateUndergroundChunks() {
@@ -130,10 +153,14 @@ public class ChunkManager {
     }
 
     private void addSaveChunkTask(Chunk chunk) {
-        if (Minecraft.getMinecraft().isSingleplayer() && Config.regionFileOutputEnabledMP || !Minecraft.getMinecraft().isSingleplayer() && Config.regionFileOutputEnabledSP) {
+        if (this.isRegionFileOutputEnabled()) {
             if (!chunk.isEmpty()) {
                 this.mw.executor.addTask(new TaskSaveChunk(copyToMwChunk(chunk), this.mw.regionManager));
             }
         }
     }
+
+    private boolean isRegionFileOutputEnabled() {
+        return Minecraft.getMinecraft().isSingleplayer() && Config.regionFileOutputEnabledMP || !Minecraft.getMinecraft().isSingleplayer() && Config.regionFileOutputEnabledSP;
+    }
 }
\ No newline at end of file
@@ -25,8 +25,12 @@ import net.minecraft.world.chunk.Chunk;
 import net.minecraftforge.common.DimensionManager;
 
 import java.io.File;
+import java.util.concurrent.TimeUnit;
 
 public class MapWriter {
+    // time per frame for calling onComplete() of finished background tasks
+    private static final long TASK_QUEUE_TIME_BUDGET = TimeUnit.MILLISECONDS.toNanos(1);
+
     private static MapWriter instance;
 
     public static MapWriter getInstance() {
@@ -292,10 +296,7 @@ public class MapWriter {
             }
 
             // process background tasks
-            int maxTasks = 50;
-            while (!this.executor.processTaskQueue() && maxTasks > 0) {
-                maxTasks--;
-            }
+            this.executor.processTaskQueue(TASK_QUEUE_TIME_BUDGET);
 
             this.chunkManager.onTick();
 
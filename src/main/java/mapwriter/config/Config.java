@@ -5,6 +5,7 @@ import mapwriter.util.Reference;
 public class Config {
 
     public static final String[] BACKGROUND_MODES = {"none", "static", "panning"};
+    public static final String[] REGION_FILE_COMPRESSION_MODES = {"zlib", "zlibFast", "none", "lz4"};
 
     // configuration options
     public static boolean linearTextureScalingDef = true;
@@ -53,6 +54,18 @@ public class Config {
     public static boolean drawMarkersNameInWorld = drawMarkersNameInWorldDef;
     public static boolean drawMarkersDistanceInWorldDef = false;
     public static boolean drawMarkersDistanceInWorld = drawMarkersDistanceInWorldDef;
+    public static boolean regionFileMemoryMappedDef = false;
+    public static boolean regionFileMemoryMapped = regionFileMemoryMappedDef;
+    public static boolean incrementalRebuildDef = false;
+    public static boolean incrementalRebuild = incrementalRebuildDef;
+    public static String regionFileCompressionDef = REGION_FILE_COMPRESSION_MODES[0];
+    public static String regionFileCompression = regionFileCompressionDef;
+    public static int maxOpenRegionFilesDef = 16;
+    public static int maxOpenRegionFiles = maxOpenRegionFilesDef;
+    public static int maxOpenReadOnlyRegionFilesDef = 32;
+    public static int maxOpenReadOnlyRegionFiles = maxOpenReadOnlyRegionFilesDef;
+    public static int backgroundThreadsDef = 2;
+    public static int backgroundThreads = backgroundThreadsDef;
 
     // World configuration Options
     public static boolean overlayEnabledDef = true;
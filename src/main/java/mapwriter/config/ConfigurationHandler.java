@@ -62,6 +62,12 @@ public class ConfigurationHandler {
         Config.drawMarkersInWorld = configuration.getBoolean("drawMarkersInWorld", Reference.CAT_OPTIONS, Config.drawMarkersInWorldDef, "", "mw.config.drawMarkersInWorld");
         Config.drawMarkersNameInWorld = configuration.getBoolean("drawMarkersNameInWorld", Reference.CAT_OPTIONS, Config.drawMarkersNameInWorldDef, "", "mw.config.drawMarkersNameInWorld");
         Config.drawMarkersDistanceInWorld = configuration.getBoolean("drawMarkersDistanceInWorld", Reference.CAT_OPTIONS, Config.drawMarkersDistanceInWorldDef, "", "mw.config.drawMarkersDistanceInWorld");
+        Config.regionFileMemoryMapped = configuration.getBoolean("regionFileMemoryMapped", Reference.CAT_OPTIONS, Config.regionFileMemoryMappedDef, "", "mw.config.regionFileMemoryMapped");
+        Config.incrementalRebuild = configuration.getBoolean("incrementalRebuild", Reference.CAT_OPTIONS, Config.incrementalRebuildDef, "", "mw.config.incrementalRebuild");
+        Config.regionFileCompression = configuration.get(Reference.CAT_OPTIONS, "regionFileCompression", Config.regionFileCompressionDef, "", Config.REGION_FILE_COMPRESSION_MODES).setLanguageKey("mw.config.regionFileCompression").setConfigEntryClass(ModGuiConfig.ModCycleValueEntry.class).getString();
+        Config.maxOpenRegionFiles = configuration.getInt("maxOpenRegionFiles", Reference.CAT_OPTIONS, Config.maxOpenRegionFilesDef, 1, 256, "", "mw.config.maxOpenRegionFiles");
+        Config.maxOpenReadOnlyRegionFiles = configuration.getInt("maxOpenReadOnlyRegionFiles", Reference.CAT_OPTIONS, Config.maxOpenReadOnlyRegionFilesDef, 1, 256, "", "mw.config.maxOpenReadOnlyRegionFiles");
+        Config.backgroundThreads = configuration.getInt("backgroundThreads", Reference.CAT_OPTIONS, Config.backgroundThreadsDef, 1, 16, "", "mw.config.backgroundThreads");
     }
 
     public static void setMapModeDefaults() {
@@ -12,6 +12,7 @@ import mapwriter.map.MapView;
 import mapwriter.map.Marker;
 import mapwriter.map.MapMode;
 import mapwriter.tasks.TaskMerge;
+import mapwriter.tasks.TaskCompactRegionFiles;
 import mapwriter.tasks.TaskRebuildRegions;
 import mapwriter.util.Reference;
 import mapwriter.util.Utils;
@@ -46,8 +47,8 @@ public class GuiFullScreenMap extends GuiScreen {
     private final MapView mapView;
 
     private final MapRenderer map;
-    private final String[] helpText1 = new String[]{"mw.gui.mwgui.keys", "", "  Space", "  Delete", "  C", "  Home", "  End", "  N", "  T", "  P", "  R", "  U", "  L", "", "mw.gui.mwgui.helptext.1", "mw.gui.mwgui.helptext.2", "mw.gui.mwgui.helptext.3", "mw.gui.mwgui.helptext.4", "mw.gui.mwgui.helptext.5", "mw.gui.mwgui.helptext.6", "", "mw.gui.mwgui.helptext.7", "mw.gui.mwgui.helptext.8", "mw.gui.mwgui.helptext.9"};
-    private final String[] helpText2 = new String[]{"", "", "mw.gui.mwgui.helptext.nextmarkergroup", "mw.gui.mwgui.helptext.deletemarker", "mw.gui.mwgui.helptext.cyclecolor", "mw.gui.mwgui.helptext.centermap", "mw.gui.mwgui.helptext.centermapplayer", "mw.gui.mwgui.helptext.selectnextmarker", "mw.gui.mwgui.helptext.teleport", "mw.gui.mwgui.helptext.savepng", "mw.gui.mwgui.helptext.regenerate", "mw.gui.mwgui.helptext.undergroundmap", "mw.gui.mwgui.helptext.markerlist"};
+    private final String[] helpText1 = new String[]{"mw.gui.mwgui.keys", "", "  Space", "  Delete", "  C", "  Home", "  End", "  N", "  T", "  P", "  R", "  K", "  U", "  L", "", "mw.gui.mwgui.helptext.1", "mw.gui.mwgui.helptext.2", "mw.gui.mwgui.helptext.3", "mw.gui.mwgui.helptext.4", "mw.gui.mwgui.helptext.5", "mw.gui.mwgui.helptext.6", "", "mw.gui.mwgui.helptext.7", "mw.gui.mwgui.helptext.8", "mw.gui.mwgui.helptext.9"};
+    private final String[] helpText2 = new String[]{"", "", "mw.gui.mwgui.helptext.nextmarkergroup", "mw.gui.mwgui.helptext.deletemarker", "mw.gui.mwgui.helptext.cyclecolor", "mw.gui.mwgui.helptext.centermap", "mw.gui.mwgui.helptext.centermapplayer", "mw.gui.mwgui.helptext.selectnextmarker", "mw.gui.mwgui.helptext.teleport", "mw.gui.mwgui.helptext.savepng", "mw.gui.mwgui.helptext.regenerate", "mw.gui.mwgui.helptext.compact", "mw.gui.mwgui.helptext.undergroundmap", "mw.gui.mwgui.helptext.markerlist"};
     private int mouseLeftHeld = 0;
     private int mouseLeftDragStartX = 0;
     private int mouseLeftDragStartY = 0;
@@ -371,6 +372,11 @@ public class GuiFullScreenMap extends GuiScreen {
         this.mw.executor.addTask(new TaskRebuildRegions(this.mw, (int) this.mapView.getMinX(), (int) this.mapView.getMinZ(), (int) this.mapView.getWidth(), (int) this.mapView.getHeight(), this.mapView.getDimension()));
     }
 
+    public void compactRegionFiles() {
+        Utils.printBoth(I18n.format("mw.gui.mwgui.chatmsg.compact", this.mapView.getDimension().getName()));
+        this.mw.executor.addTask(new TaskCompactRegionFiles(this.mw.regionManager, this.mapView.getDimension()));
+    }
+
     @Override
     public void updateScreen() {}
 
@@ -485,6 +491,10 @@ public class GuiFullScreenMap extends GuiScreen {
                 this.regenerateView();
                 this.exitGui();
                 break;
+            case Keyboard.KEY_K:
+                this.compactRegionFiles();
+                this.exitGui();
+                break;
             case Keyboard.KEY_L:
                 this.markerOverlay.setEnabled(!this.markerOverlay.getEnabled());
                 break;
@@ -8,6 +8,7 @@ import mapwriter.util.Texture;
 import net.minecraft.world.DimensionType;
 import org.lwjgl.opengl.GL11;
 
+import java.awt.Rectangle;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -82,6 +83,10 @@ public class MapTexture extends Texture {
     //
 
     public int loadRegions(RegionManager regionManager, MapViewRequest req) {
+        if (req.zoomLevel > 0) {
+            // the zoomed out regions must contain the latest chunk updates
+            this.updateZoomLevels(regionManager);
+        }
         final int size = Region.SIZE << req.zoomLevel;
         int loadedCount = 0;
         for (int z = req.zMin; z <= req.zMax; z += size) {
@@ -94,6 +99,20 @@ public class MapTexture extends Texture {
         return loadedCount;
     }
 
+    // update the higher zoom levels from the chunk updates collected by the
+    // region manager, and the texture from the updated areas
+    public void updateZoomLevels(RegionManager regionManager) {
+        for (final Region region : regionManager.takeDirtyRegions()) {
+            this.updateZoomLevels(region);
+        }
+    }
+
+    public void updateZoomLevels(Region region) {
+        for (final Rectangle area : region.updateDirtyZoomLevels()) {
+            this.updateArea(area.x, area.y, area.width, area.height, region.dimension);
+        }
+    }
+
     public void processTextureUpdates() {
 
         synchronized (this.textureUpdateQueue) {
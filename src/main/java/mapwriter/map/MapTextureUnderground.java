@@ -1,17 +1,15 @@
 package mapwriter.map;
 
 import mapwriter.MapWriter;
+import mapwriter.config.Config;
 import mapwriter.region.ChunkRender;
 import mapwriter.region.MapChunk;
 import mapwriter.util.Texture;
 import net.minecraft.block.Block;
 import net.minecraft.block.state.IBlockState;
-import net.minecraft.client.Minecraft;
 import net.minecraft.client.multiplayer.WorldClient;
-import net.minecraft.init.Biomes;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.world.DimensionType;
-import net.minecraft.world.biome.Biome;
 import net.minecraft.world.chunk.Chunk;
 import org.lwjgl.opengl.GL11;
 
@@ -28,15 +26,8 @@ public class MapTextureUnderground extends Texture {
         }
 
         @Override
-        public Biome getBiome(int x, int y, int z) {
-            final int localX = x & 15;
-            final int localZ = z & 15;
-            int bid = this.chunk.getBiomeArray()[localZ << 4 | localX] & 255;
-
-            if (bid == 255) {
-                return Minecraft.getMinecraft().world.getBiomeProvider().getBiome(new BlockPos(x, y, z), Biomes.PLAINS);
-            }
-            return Biome.getBiome(bid);
+        public int getBiomeId(int x, int z) {
+            return this.chunk.getBiomeArray()[(z & 15) << 4 | x & 15] & 255;
         }
 
         @Override
@@ -53,6 +44,11 @@ public class MapTextureUnderground extends Texture {
         public int getMaxY() {
             return this.chunk.getTopFilledSegment() + 15;
         }
+
+        @Override
+        public int getTopBlockY(int x, int z) {
+            return this.getMaxY();
+        }
     }
 
     private final MapWriter mw;
@@ -152,6 +148,7 @@ public class MapTextureUnderground extends Texture {
         final int cxMax = this.updateX + 2;
         final int czMax = this.updateZ + 2;
         final WorldClient world = this.mw.mc.world;
+        final ChunkRender chunkRender = new ChunkRender(this.mw.blockColors, this.mw.blockColors, Config.moreRealisticMap);
         int flagOffset = 0;
         for (int cz = this.updateZ; cz <= czMax; cz++) {
             for (int cx = this.updateX; cx <= cxMax; cx++) {
@@ -161,7 +158,7 @@ public class MapTextureUnderground extends Texture {
                     final int tz = cz << 4 & this.textureSize - 1;
                     final int pixelOffset = tz * this.textureSize + tx;
                     final byte[] mask = this.updateFlags[flagOffset];
-                    ChunkRender.renderUnderground(this.mw.blockColors, new RenderChunk(chunk), this.pixels, pixelOffset, this.textureSize, this.py, mask);
+                    chunkRender.renderUnderground(new RenderChunk(chunk), this.pixels, pixelOffset, this.textureSize, this.py, mask);
                 }
                 flagOffset += 1;
             }
@@ -0,0 +1,12 @@
+package mapwriter.region;
+
+import mapwriter.util.BiomeColors;
+
+/*
+ * Grass, foliage and water colors of biomes, used by ChunkRender to tint
+ * blocks from the biome IDs stored in a chunk.
+ */
+public interface BiomeTintSource {
+    // the colors of the biome with the given ID (0 - 255), never null
+    BiomeColors getBiomeColors(int biomeId);
+}
@@ -0,0 +1,40 @@
+package mapwriter.region;
+
+import mapwriter.util.BiomeColors;
+import net.minecraft.block.state.IBlockState;
+
+/*
+ * Block state colors used by ChunkRender.
+ *
+ * A tint is the tint kind in the top byte and, for TINT_FIXED, the RGB color
+ * to multiply the block color with in the rest. Grass, foliage and water
+ * tints are taken from the BiomeColors of the column being rendered.
+ */
+public interface BlockColorTable {
+    int TINT_FIXED = 0;
+    int TINT_GRASS = 1;
+    int TINT_FOLIAGE = 2;
+    int TINT_WATER = 3;
+    int TINT_NONE = TINT_FIXED << 24 | 0xffffff;
+
+    // the RGB color to multiply a block color with, for the given tint and
+    // biome colors
+    static int getTintColor(int tint, BiomeColors biomeColors) {
+        switch (tint >>> 24) {
+            case TINT_GRASS:
+                return biomeColors.getGrass();
+            case TINT_FOLIAGE:
+                return biomeColors.getFoliage();
+            case TINT_WATER:
+                return biomeColors.getWater();
+            default:
+                return tint & 0xffffff;
+        }
+    }
+
+    // ARGB color of the state
+    int getStateColor(IBlockState state);
+
+    // tint of the state, TINT_NONE for untinted blocks
+    int getStateTint(IBlockState state);
+}
@@ -0,0 +1,236 @@
+package mapwriter.region;
+
+import mapwriter.forge.MapWriterForge;
+import mapwriter.util.BiomeColors;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.init.Blocks;
+import net.minecraft.util.BitArray;
+import net.minecraft.world.chunk.BlockStateContainer;
+import net.minecraft.world.chunk.IBlockStatePalette;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+import net.minecraftforge.fml.relauncher.ReflectionHelper;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+
+/*
+ * Block states and colors of one chunk for the column walks in ChunkRender.
+ *
+ * Getting the color of a block through BlockColorTable.getStateColor() means
+ * looking up the ID of its block state for every block. The blocks of a
+ * chunk section are stored as indices into the section's block state palette
+ * though, so for MapWriterChunks each palette entry is resolved to its color
+ * once (the first time it is needed) and a block's color is then read from a
+ * flat array indexed by its palette index.
+ *
+ * The tint of each palette entry is resolved at the same time. Biome tints
+ * are taken from the biome colors of the column, which are looked up once
+ * per column from the biome IDs of the chunk through the BiomeTintSource, so
+ * rendering never asks the live world for block colors.
+ *
+ * The palette and index storage of BlockStateContainer are not accessible, so
+ * they are read through reflection. If that fails, and for other MapChunk
+ * implementations, every block is looked up through the color table.
+ *
+ * Instances are only used for rendering one chunk and are not thread safe.
+ */
+public class ChunkColors {
+
+    // resolved palette entries of one section
+    private static class SectionColors {
+        final BitArray storage;
+        final IBlockStatePalette palette;
+        // the palette index of every block if they are all the same, -1 if
+        // they are not, or UNKNOWN_INDEX if not checked yet.
+        // the palette always has air as its first entry and never shrinks, so
+        // a section of a single block type still has several palette entries.
+        int uniformIndex = UNKNOWN_INDEX;
+        // indexed by palette index, null if not resolved yet
+        IBlockState[] states = new IBlockState[16];
+        int[] colors = new int[16];
+        int[] tints = new int[16];
+
+        SectionColors(BitArray storage, IBlockStatePalette palette) {
+            this.storage = storage;
+            this.palette = palette;
+        }
+    }
+
+    private static final int UNKNOWN_INDEX = -2;
+
+    // returned by getSection() for sections without any blocks
+    private static final SectionColors EMPTY_SECTION = new SectionColors(null, null);
+
+    private static final Field STORAGE_FIELD = findField("field_186021_b", "storage");
+    private static final Field PALETTE_FIELD = findField("field_186022_c", "palette");
+
+    private static Field findField(String... names) {
+        try {
+            return ReflectionHelper.findField(BlockStateContainer.class, names);
+        } catch (final RuntimeException e) {
+            MapWriterForge.LOGGER.warn("could not find BlockStateContainer.{}, using slower block color lookups: {}", names[1], e);
+            return null;
+        }
+    }
+
+    private final BlockColorTable colorTable;
+    private final BiomeTintSource biomeTints;
+    private final MapChunk chunk;
+    // only set if the palette fast path can be used
+    private final ExtendedBlockStorage[] dataArray;
+    private final SectionColors[] sections = new SectionColors[16];
+    private final boolean[] sectionsLoaded = new boolean[16];
+    private IBlockState airState = null;
+    private int airColor = 0;
+    // biome colors of each column, indexed by (z << 4) | x, null if not
+    // looked up yet
+    private final BiomeColors[] columnBiomeColors = new BiomeColors[256];
+
+    public ChunkColors(BlockColorTable colorTable, BiomeTintSource biomeTints, MapChunk chunk) {
+        this.colorTable = colorTable;
+        this.biomeTints = biomeTints;
+        this.chunk = chunk;
+        this.dataArray = chunk instanceof MapWriterChunk && STORAGE_FIELD != null && PALETTE_FIELD != null ? ((MapWriterChunk) chunk).dataArray : null;
+    }
+
+    public IBlockState getBlockState(int x, int y, int z) {
+        final SectionColors section = this.getSection(y);
+        if (section == EMPTY_SECTION) {
+            return this.getAirState();
+        } else if (section == null) {
+            return this.chunk.getBlockState(x, y, z);
+        }
+        final int index = section.storage.getAt((y & 15) << 8 | (z & 15) << 4 | x & 15);
+        return this.resolve(section, index) ? section.states[index] : this.chunk.getBlockState(x, y, z);
+    }
+
+    // same as colorTable.getStateColor(chunk.getBlockState(x, y, z))
+    public int getColor(int x, int y, int z) {
+        final SectionColors section = this.getSection(y);
+        if (section == EMPTY_SECTION) {
+            this.getAirState();
+            return this.airColor;
+        } else if (section == null) {
+            return this.colorTable.getStateColor(this.chunk.getBlockState(x, y, z));
+        }
+        final int index = section.storage.getAt((y & 15) << 8 | (z & 15) << 4 | x & 15);
+        return this.resolve(section, index) ? section.colors[index] : this.colorTable.getStateColor(this.chunk.getBlockState(x, y, z));
+    }
+
+    // true if the section containing y has no blocks, the column walks skip
+    // over these in one step
+    public boolean isEmptySection(int y) {
+        return this.getSection(y) == EMPTY_SECTION;
+    }
+
+    // true if all blocks of the section containing y are the same opaque
+    // block
+    public boolean isOpaqueSection(int y) {
+        final SectionColors section = this.getSection(y);
+        if (section == null || section == EMPTY_SECTION) {
+            return false;
+        }
+        if (section.uniformIndex == UNKNOWN_INDEX) {
+            section.uniformIndex = getUniformIndex(section.storage);
+        }
+        if (section.uniformIndex < 0 || !this.resolve(section, section.uniformIndex)) {
+            return false;
+        }
+        final int color = section.colors[section.uniformIndex];
+        return (color >> 24 & 0xff) == 0xff && color != 0xff7c007c;
+    }
+
+    // the RGB color to multiply the color of the block with, for example the
+    // grass color of the biome for grass
+    public int getColorModifier(int x, int y, int z) {
+        final int tint = this.getTint(x, y, z);
+        return tint == BlockColorTable.TINT_NONE ? 0xffffff : BlockColorTable.getTintColor(tint, this.getBiomeColors(x, z));
+    }
+
+    private int getTint(int x, int y, int z) {
+        final SectionColors section = this.getSection(y);
+        if (section == EMPTY_SECTION) {
+            return BlockColorTable.TINT_NONE;
+        } else if (section == null) {
+            return this.colorTable.getStateTint(this.chunk.getBlockState(x, y, z));
+        }
+        final int index = section.storage.getAt((y & 15) << 8 | (z & 15) << 4 | x & 15);
+        return this.resolve(section, index) ? section.tints[index] : this.colorTable.getStateTint(this.chunk.getBlockState(x, y, z));
+    }
+
+    private BiomeColors getBiomeColors(int x, int z) {
+        final int i = (z & 15) << 4 | x & 15;
+        BiomeColors biomeColors = this.columnBiomeColors[i];
+        if (biomeColors == null) {
+            biomeColors = this.biomeTints.getBiomeColors(this.chunk.getBiomeId(x, z));
+            this.columnBiomeColors[i] = biomeColors;
+        }
+        return biomeColors;
+    }
+
+    private IBlockState getAirState() {
+        if (this.airState == null) {
+            this.airState = Blocks.AIR.getDefaultState();
+            this.airColor = this.colorTable.getStateColor(this.airState);
+        }
+        return this.airState;
+    }
+
+    // returns the palette colors of the section containing y, EMPTY_SECTION
+    // if it has no blocks, or null if the fast path cannot be used for it
+    private SectionColors getSection(int y) {
+        if (this.dataArray == null) {
+            return null;
+        }
+        final int yi = y >> 4 & 15;
+        if (!this.sectionsLoaded[yi]) {
+            this.sectionsLoaded[yi] = true;
+            final ExtendedBlockStorage storage = this.dataArray[yi];
+            if (storage == null || storage.isEmpty()) {
+                this.sections[yi] = EMPTY_SECTION;
+            } else {
+                try {
+                    final BlockStateContainer data = storage.getData();
+                    this.sections[yi] = new SectionColors((BitArray) STORAGE_FIELD.get(data), (IBlockStatePalette) PALETTE_FIELD.get(data));
+                } catch (final IllegalAccessException | ClassCastException e) {
+                    MapWriterForge.LOGGER.warn("could not read the palette of chunk section {}: {}", yi, e);
+                }
+            }
+        }
+        return this.sections[yi];
+    }
+
+    // returns the palette index of all blocks of a section, or -1 if they
+    // are not all the same
+    private static int getUniformIndex(BitArray storage) {
+        final int index = storage.getAt(0);
+        for (int i = 1; i < 4096; i++) {
+            if (storage.getAt(i) != index) {
+                return -1;
+            }
+        }
+        return index;
+    }
+
+    // resolve a palette entry of a section, returns false if the palette does
+    // not contain it
+    private boolean resolve(SectionColors section, int index) {
+        if (index < section.states.length && section.states[index] != null) {
+            return true;
+        }
+        final IBlockState state = section.palette.getBlockState(index);
+        if (state == null) {
+            return false;
+        }
+        if (index >= section.states.length) {
+            final int length = Math.max(index + 1, section.states.length * 2);
+            section.states = Arrays.copyOf(section.states, length);
+            section.colors = Arrays.copyOf(section.colors, length);
+            section.tints = Arrays.copyOf(section.tints, length);
+        }
+        section.states[index] = state;
+        section.colors[index] = this.colorTable.getStateColor(state);
+        section.tints[index] = this.colorTable.getStateTint(state);
+        return true;
+    }
+}
@@ -0,0 +1,300 @@
+package mapwriter.region;
+
+import net.minecraft.world.chunk.NibbleArray;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+
+import java.io.DataInput;
+import java.io.EOFException;
+import java.io.IOException;
+
+/*
+ * Streaming reader for chunk NBT data (as written by Minecraft or
+ * MapWriterChunk.write) that only decodes the tags needed to render the chunk.
+ *
+ * Instead of building an NBTTagCompound tree it walks the tags as they come
+ * from the stream. The block data of each section and the biomes are read
+ * directly into arrays, the light and height map arrays only if asked for.
+ * Everything else (entities, tile entities, tile ticks, ...) is skipped at the
+ * byte level without creating any objects.
+ *
+ * Tag names are compared as raw bytes, so reading a chunk does not create any
+ * strings either.
+ */
+public class ChunkNbtReader {
+
+    private static final int TAG_END = 0;
+    private static final int TAG_BYTE = 1;
+    private static final int TAG_SHORT = 2;
+    private static final int TAG_INT = 3;
+    private static final int TAG_LONG = 4;
+    private static final int TAG_FLOAT = 5;
+    private static final int TAG_DOUBLE = 6;
+    private static final int TAG_BYTE_ARRAY = 7;
+    private static final int TAG_STRING = 8;
+    private static final int TAG_LIST = 9;
+    private static final int TAG_COMPOUND = 10;
+    private static final int TAG_INT_ARRAY = 11;
+    private static final int TAG_LONG_ARRAY = 12;
+
+    // same limit as the Minecraft NBT reader
+    private static final int MAX_DEPTH = 512;
+
+    private static final byte[] NAME_LEVEL = name("Level");
+    private static final byte[] NAME_X_POS = name("xPos");
+    private static final byte[] NAME_Z_POS = name("zPos");
+    private static final byte[] NAME_BIOMES = name("Biomes");
+    private static final byte[] NAME_HEIGHT_MAP = name("HeightMap");
+    private static final byte[] NAME_SECTIONS = name("Sections");
+    private static final byte[] NAME_Y = name("Y");
+    private static final byte[] NAME_BLOCKS = name("Blocks");
+    private static final byte[] NAME_DATA = name("Data");
+    private static final byte[] NAME_ADD = name("Add");
+    private static final byte[] NAME_BLOCK_LIGHT = name("BlockLight");
+    private static final byte[] NAME_SKY_LIGHT = name("SkyLight");
+
+    private static byte[] name(String name) {
+        final byte[] bytes = new byte[name.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) name.charAt(i);
+        }
+        return bytes;
+    }
+
+    private final boolean readLight;
+    private final boolean readHeightMap;
+
+    // the name of the last tag read
+    private byte[] nameBuf = new byte[64];
+    private int nameLength = 0;
+
+    public int xPos = 0;
+    public int zPos = 0;
+    public byte[] biomes = null;
+    public int[] heightMap = null;
+    public final ExtendedBlockStorage[] sections = new ExtendedBlockStorage[16];
+
+    public ChunkNbtReader(boolean readLight, boolean readHeightMap) {
+        this.readLight = readLight;
+        this.readHeightMap = readHeightMap;
+    }
+
+    // read a whole chunk NBT structure from 'in'
+    public void read(DataInput in) throws IOException {
+        if (in.readByte() != TAG_COMPOUND) {
+            throw new IOException("chunk data does not start with a compound tag");
+        }
+        this.readName(in);
+        for (int type = in.readByte(); type != TAG_END; type = in.readByte()) {
+            this.readName(in);
+            if (type == TAG_COMPOUND && this.nameIs(NAME_LEVEL)) {
+                this.readLevel(in);
+            } else {
+                this.skipPayload(in, type, 0);
+            }
+        }
+    }
+
+    private boolean nameIs(byte[] name) {
+        if (this.nameLength != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (this.nameBuf[i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] readByteArray(DataInput in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("negative byte array length " + length);
+        }
+        final byte[] array = new byte[length];
+        in.readFully(array);
+        return array;
+    }
+
+    private int[] readIntArray(DataInput in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("negative int array length " + length);
+        }
+        final int[] array = new int[length];
+        for (int i = 0; i < length; i++) {
+            array[i] = in.readInt();
+        }
+        return array;
+    }
+
+    private void readLevel(DataInput in) throws IOException {
+        for (int type = in.readByte(); type != TAG_END; type = in.readByte()) {
+            this.readName(in);
+            if (type == TAG_INT && this.nameIs(NAME_X_POS)) {
+                this.xPos = in.readInt();
+            } else if (type == TAG_INT && this.nameIs(NAME_Z_POS)) {
+                this.zPos = in.readInt();
+            } else if (type == TAG_BYTE_ARRAY && this.nameIs(NAME_BIOMES)) {
+                this.biomes = this.readByteArray(in);
+            } else if (type == TAG_INT_ARRAY && this.readHeightMap && this.nameIs(NAME_HEIGHT_MAP)) {
+                this.heightMap = this.readIntArray(in);
+            } else if (type == TAG_LIST && this.nameIs(NAME_SECTIONS)) {
+                this.readSections(in);
+            } else {
+                this.skipPayload(in, type, 1);
+            }
+        }
+    }
+
+    private void readName(DataInput in) throws IOException {
+        final int length = in.readUnsignedShort();
+        if (length > this.nameBuf.length) {
+            this.nameBuf = new byte[length];
+        }
+        in.readFully(this.nameBuf, 0, length);
+        this.nameLength = length;
+    }
+
+    private void readSection(DataInput in) throws IOException {
+        int y = -1;
+        byte[] blocks = null;
+        byte[] data = null;
+        byte[] add = null;
+        byte[] blockLight = null;
+        byte[] skyLight = null;
+        for (int type = in.readByte(); type != TAG_END; type = in.readByte()) {
+            this.readName(in);
+            if (type == TAG_BYTE && this.nameIs(NAME_Y)) {
+                y = in.readByte();
+            } else if (type == TAG_BYTE_ARRAY && this.nameIs(NAME_BLOCKS)) {
+                blocks = this.readByteArray(in);
+            } else if (type == TAG_BYTE_ARRAY && this.nameIs(NAME_DATA)) {
+                data = this.readByteArray(in);
+            } else if (type == TAG_BYTE_ARRAY && this.nameIs(NAME_ADD)) {
+                add = this.readByteArray(in);
+            } else if (type == TAG_BYTE_ARRAY && this.readLight && this.nameIs(NAME_BLOCK_LIGHT)) {
+                blockLight = this.readByteArray(in);
+            } else if (type == TAG_BYTE_ARRAY && this.readLight && this.nameIs(NAME_SKY_LIGHT)) {
+                skyLight = this.readByteArray(in);
+            } else {
+                this.skipPayload(in, type, 3);
+            }
+        }
+
+        if (y < 0 || y >= 16 || blocks == null || data == null) {
+            throw new IOException("section without Y, Blocks or Data tag");
+        }
+        if (blocks.length != 4096 || data.length != 2048 || add != null && add.length != 2048) {
+            throw new IOException("section " + y + " has block arrays of the wrong size");
+        }
+        final ExtendedBlockStorage storage = new ExtendedBlockStorage(y << 4, true);
+        storage.getData().setDataFromNBT(blocks, new NibbleArray(data), add != null ? new NibbleArray(add) : null);
+        if (blockLight != null && blockLight.length == 2048) {
+            storage.setBlockLight(new NibbleArray(blockLight));
+        }
+        if (skyLight != null && skyLight.length == 2048) {
+            storage.setSkyLight(new NibbleArray(skyLight));
+        }
+        storage.recalculateRefCounts();
+        this.sections[y] = storage;
+    }
+
+    private void readSections(DataInput in) throws IOException {
+        final int elementType = in.readByte();
+        final int count = in.readInt();
+        if (elementType != TAG_COMPOUND) {
+            this.skipList(in, elementType, count, 2);
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            this.readSection(in);
+        }
+    }
+
+    private void skipFully(DataInput in, long length) throws IOException {
+        if (length < 0) {
+            throw new IOException("negative tag length " + length);
+        }
+        while (length > 0) {
+            final int skipped = in.skipBytes((int) Math.min(length, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                throw new EOFException("unexpected end of chunk data");
+            }
+            length -= skipped;
+        }
+    }
+
+    private void skipList(DataInput in, int elementType, int count, int depth) throws IOException {
+        switch (elementType) {
+            case TAG_END:
+                break;
+            case TAG_BYTE:
+                this.skipFully(in, count);
+                break;
+            case TAG_SHORT:
+                this.skipFully(in, count * 2L);
+                break;
+            case TAG_INT:
+            case TAG_FLOAT:
+                this.skipFully(in, count * 4L);
+                break;
+            case TAG_LONG:
+            case TAG_DOUBLE:
+                this.skipFully(in, count * 8L);
+                break;
+            default:
+                for (int i = 0; i < count; i++) {
+                    this.skipPayload(in, elementType, depth);
+                }
+                break;
+        }
+    }
+
+    // skip the payload of a tag of the given type
+    private void skipPayload(DataInput in, int type, int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("chunk NBT nested too deeply");
+        }
+        switch (type) {
+            case TAG_BYTE:
+                this.skipFully(in, 1);
+                break;
+            case TAG_SHORT:
+                this.skipFully(in, 2);
+                break;
+            case TAG_INT:
+            case TAG_FLOAT:
+                this.skipFully(in, 4);
+                break;
+            case TAG_LONG:
+            case TAG_DOUBLE:
+                this.skipFully(in, 8);
+                break;
+            case TAG_BYTE_ARRAY:
+                this.skipFully(in, in.readInt());
+                break;
+            case TAG_STRING:
+                this.skipFully(in, in.readUnsignedShort());
+                break;
+            case TAG_LIST:
+                final int elementType = in.readByte();
+                this.skipList(in, elementType, in.readInt(), depth + 1);
+                break;
+            case TAG_COMPOUND:
+                for (int memberType = in.readByte(); memberType != TAG_END; memberType = in.readByte()) {
+                    this.skipFully(in, in.readUnsignedShort());
+                    this.skipPayload(in, memberType, depth + 1);
+                }
+                break;
+            case TAG_INT_ARRAY:
+                this.skipFully(in, in.readInt() * 4L);
+                break;
+            case TAG_LONG_ARRAY:
+                this.skipFully(in, in.readInt() * 8L);
+                break;
+            default:
+                throw new IOException("unknown NBT tag type " + type);
+        }
+    }
+}
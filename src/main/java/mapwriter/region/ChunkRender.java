@@ -1,11 +1,17 @@
 package mapwriter.region;
 
-import mapwriter.util.BlockColors;
-import mapwriter.config.Config;
-import net.minecraft.block.state.IBlockState;
-import net.minecraft.client.Minecraft;
-import net.minecraft.util.math.BlockPos;
-
+/*
+ * Renders map pixels from MapChunks.
+ *
+ * All inputs are passed in explicitly: the block state colors, the biome
+ * colors used for tinting and the shading settings are given to the
+ * constructor, and the blocks, biome IDs and light values come from the
+ * MapChunk. Nothing is read from the client world or the config, so chunks
+ * can be rendered on any thread, or without a running game.
+ *
+ * Instances do not change after construction and can be shared between
+ * threads.
+ */
 public class ChunkRender {
 
     public static final byte FLAG_UNPROCESSED = 0;
@@ -18,6 +24,26 @@ public class ChunkRender {
     public static final double BRIGHTEN_AMP = 0.7;
     public static final double DARKEN_AMP = 1.4;
 
+    private static final int FIXED_ONE = 1 << 16;
+    // covers twice the largest possible height difference of 255 blocks
+    private static final int SHADING_TABLE_OFFSET = 512;
+    private static final int[] HEIGHT_SHADING = createHeightShadingTable(false);
+    private static final int[] REALISTIC_HEIGHT_SHADING = createHeightShadingTable(true);
+    // turns a blended component (1.0 = 255^3 << 16) times the 16.16 height
+    // shading times the light value (0 - 15) into the range [0, 255]
+    private static final long COMPONENT_DIVISOR = 255L * 255L * FIXED_ONE * FIXED_ONE * 15L;
+
+    private final BlockColorTable colorTable;
+    private final BiomeTintSource biomeTints;
+    private final int[] heightShading;
+
+    // moreRealisticMap selects the gentler height shading
+    public ChunkRender(BlockColorTable colorTable, BiomeTintSource biomeTints, boolean moreRealisticMap) {
+        this.colorTable = colorTable;
+        this.biomeTints = biomeTints;
+        this.heightShading = moreRealisticMap ? REALISTIC_HEIGHT_SHADING : HEIGHT_SHADING;
+    }
+
     // calculate the color of a pixel by alpha blending the color of each
     // block
     // in a column until an opaque block is reached.
@@ -43,15 +69,25 @@ public class ChunkRender {
     // note that the "front to back" alpha blending algorithm is used
     // rather than the more common "back to front".
     //
-    public static int getColumnColor(BlockColors bc, MapChunk chunk, int x, int y, int z, int heightW, int heightN) {
-
-        double a = 1.0;
-        double r = 0.0;
-        double g = 0.0;
-        double b = 0.0;
+    // the blocks are looked up through 'colors', which has to be created for
+    // the chunk once and can then be used for all of its columns.
+    public int getColumnColor(ChunkColors colors, MapChunk chunk, int x, int y, int z, int heightW, int heightN) {
+
+        // a is the fraction of light still passing through the blocks above,
+        // in 16.16 fixed point.
+        // r, g and b are sums of alpha * color * modifier * a, so 1.0 is
+        // 255 * 255 * 255 << 16.
+        int a = FIXED_ONE;
+        long r = 0;
+        long g = 0;
+        long b = 0;
         for (; y > 0; y--) {
-            final IBlockState blockState = chunk.getBlockState(x, y, z);
-            final int c1 = bc.getStateColor(blockState);
+            if (colors.isEmptySection(y)) {
+                // skip the rest of the section, air does not change the color
+                y = Math.max(y & ~15, 1);
+                continue;
+            }
+            final int c1 = colors.getColor(x, y, z);
             int alpha = c1 >> 24 & 0xff;
 
             // this is the color that gets returned for air, so set aplha to 0
@@ -63,24 +99,15 @@ public class ChunkRender {
             // no need to process block if it is transparent
             if (alpha > 0) {
 
-                final int c2 = bc.getColorModifier(blockState, Minecraft.getMinecraft().world, new BlockPos(x, y, z));
-
-                // extract color components as normalized doubles
-                final double c1A = alpha / 255.0;
-                final double c1R = (c1 >> 16 & 0xff) / 255.0;
-                final double c1G = (c1 >> 8 & 0xff) / 255.0;
-                final double c1B = (c1 >> 0 & 0xff) / 255.0;
-
-                // c2A is implicitly 1.0 (opaque)
-                final double c2R = (c2 >> 16 & 0xff) / 255.0;
-                final double c2G = (c2 >> 8 & 0xff) / 255.0;
-                final double c2B = (c2 >> 0 & 0xff) / 255.0;
+                // c2 alpha is implicitly 255 (opaque)
+                final int c2 = colors.getColorModifier(x, y, z);
 
                 // alpha blend and multiply
-                r = r + a * c1A * c1R * c2R;
-                g = g + a * c1A * c1G * c2G;
-                b = b + a * c1A * c1B * c2B;
-                a = a * (1.0 - c1A);
+                final long aAlpha = (long) a * alpha;
+                r += aAlpha * ((c1 >> 16 & 0xff) * (c2 >> 16 & 0xff));
+                g += aAlpha * ((c1 >> 8 & 0xff) * (c2 >> 8 & 0xff));
+                b += aAlpha * ((c1 & 0xff) * (c2 & 0xff));
+                a = (a * (255 - alpha) + 127) / 255;
             }
             // break when an opaque block is encountered
             if (alpha == 255) {
@@ -88,29 +115,24 @@ public class ChunkRender {
             }
         }
 
-        final double heightShading = getHeightShading(y, heightW, heightN);
-        final int lightValue = chunk.getLightValue(x, y + 1, z);
-        final double lightShading = lightValue / 15.0;
-        final double shading = (heightShading + 1.0) * lightShading;
-
-        // apply the shading
-        r = Math.min(Math.max(0.0, r * shading), 1.0);
-        g = Math.min(Math.max(0.0, g * shading), 1.0);
-        b = Math.min(Math.max(0.0, b * shading), 1.0);
+        // shading is (heightShading + 1.0) * light / 15, kept as the 16.16
+        // height factor times the light value
+        final long shading = (long) this.getHeightShading(y, heightW, heightN) * chunk.getLightValue(x, y + 1, z);
 
-        // now we have our final RGB values as doubles, convert to a packed ARGB
-        // pixel.
-        return (y & 0xff) << 24 | ((int) (r * 255.0) & 0xff) << 16 | ((int) (g * 255.0) & 0xff) << 8 | (int) (b * 255.0) & 0xff;
+        // now we have our final RGB values, scale them to the range [0, 255]
+        // and convert to a packed ARGB pixel.
+        return (y & 0xff) << 24 | shadeComponent(r, shading) << 16 | shadeComponent(g, shading) << 8 | shadeComponent(b, shading);
     }
 
-    // get the height shading of a pixel.
+    // get the height shading factor (1.0 + height shading) of a pixel in 16.16
+    // fixed point.
     // requires the pixel to the west and the pixel to the north to have their
     // heights stored in the alpha channel to work.
     // the "height" of a pixel is the y value of the first opaque block in
     // the block column that created the pixel.
     // height values of 0 and 255 are ignored as these are used as the clear
     // values for pixels.
-    public static double getHeightShading(int height, int heightW, int heightN) {
+    public int getHeightShading(int height, int heightW, int heightN) {
 
         int samples = 0;
         int heightDiff = 0;
@@ -125,23 +147,47 @@ public class ChunkRender {
             samples++;
         }
 
-        double heightDiffFactor = 0.0;
-        if (samples > 0) {
-            heightDiffFactor = (double) heightDiff / (double) samples;
-        }
+        // the tables are indexed by twice the average height difference, so
+        // that averages of two samples are exact
+        final int doubleDiff = samples == 1 ? heightDiff * 2 : heightDiff;
+        final int index = Math.min(Math.max(0, doubleDiff + SHADING_TABLE_OFFSET), SHADING_TABLE_OFFSET * 2);
+        return this.heightShading[index];
+    }
 
-        // emphasize small differences in height, but as the difference in
-        // height increases,
-        // don't increase so much
-        if (Config.moreRealisticMap) {
+    // the height shading for an average height difference, used to fill the
+    // lookup tables.
+    // emphasize small differences in height, but as the difference in
+    // height increases, don't increase so much
+    private static double getHeightShading(double heightDiffFactor, boolean moreRealisticMap) {
+
+        if (moreRealisticMap) {
             return Math.atan(heightDiffFactor) * 0.3;
         }
 
         return heightDiffFactor >= 0.0 ? Math.pow(heightDiffFactor * (1 / 255.0), BRIGHTEN_EXP) * BRIGHTEN_AMP : -Math.pow(-(heightDiffFactor * (1 / 255.0)), DARKEN_EXP) * DARKEN_AMP;
     }
 
-    public static void renderSurface(BlockColors bc, MapChunk chunk, int[] pixels, int offset, int scanSize, boolean dimensionHasCeiling) {
+    private static int[] createHeightShadingTable(boolean moreRealisticMap) {
+
+        final int[] table = new int[SHADING_TABLE_OFFSET * 2 + 1];
+        for (int i = 0; i < table.length; i++) {
+            final double heightDiffFactor = (i - SHADING_TABLE_OFFSET) / 2.0;
+            table[i] = (int) Math.round((getHeightShading(heightDiffFactor, moreRealisticMap) + 1.0) * FIXED_ONE);
+        }
+        return table;
+    }
+
+    // apply the shading to a blended color component and convert it to the
+    // range [0, 255]
+    private static int shadeComponent(long component, long shading) {
 
+        final long value = component * shading / COMPONENT_DIVISOR;
+        return (int) Math.min(Math.max(0, value), 255);
+    }
+
+    public void renderSurface(MapChunk chunk, int[] pixels, int offset, int scanSize, boolean dimensionHasCeiling) {
+
+        final ChunkColors colors = new ChunkColors(this.colorTable, this.biomeTints, chunk);
         final int chunkMaxY = chunk.getMaxY();
         for (int z = 0; z < MapWriterChunk.SIZE; z++) {
             for (int x = 0; x < MapWriterChunk.SIZE; x++) {
@@ -153,8 +199,12 @@ public class ChunkRender {
                 int y;
                 if (dimensionHasCeiling) {
                     for (y = 127; y >= 0; y--) {
-                        final IBlockState blockState = chunk.getBlockState(x, y, z);
-                        final int color = bc.getStateColor(blockState);
+                        if (colors.isOpaqueSection(y)) {
+                            // skip the rest of the section
+                            y &= ~15;
+                            continue;
+                        }
+                        final int color = colors.getColor(x, y, z);
                         int alpha = color >> 24 & 0xff;
 
                         if (color == -8650628) {
@@ -166,17 +216,20 @@ public class ChunkRender {
                         }
                     }
                 } else {
-                    y = chunkMaxY - 1;
+                    // start at the highest block of the column, the air
+                    // above it does not change the color
+                    y = Math.max(0, Math.min(chunk.getTopBlockY(x, z), chunkMaxY - 1));
                 }
 
                 final int pixelOffset = offset + z * scanSize + x;
-                pixels[pixelOffset] = getColumnColor(bc, chunk, x, y, z, getPixelHeightW(pixels, pixelOffset, scanSize), getPixelHeightN(pixels, pixelOffset, scanSize));
+                pixels[pixelOffset] = this.getColumnColor(colors, chunk, x, y, z, getPixelHeightW(pixels, pixelOffset, scanSize), getPixelHeightN(pixels, pixelOffset, scanSize));
             }
         }
     }
 
-    public static void renderUnderground(BlockColors bc, MapChunk chunk, int[] pixels, int offset, int scanSize, int startY, byte[] mask) {
+    public void renderUnderground(MapChunk chunk, int[] pixels, int offset, int scanSize, int startY, byte[] mask) {
 
+        final ChunkColors colors = new ChunkColors(this.colorTable, this.biomeTints, chunk);
         startY = Math.min(Math.max(0, startY), 255);
         for (int z = 0; z < MapWriterChunk.SIZE; z++) {
             for (int x = 0; x < MapWriterChunk.SIZE; x++) {
@@ -192,8 +245,12 @@ public class ChunkRender {
                 // towards the sky from startY
                 int lastNonTransparentY = startY;
                 for (int y = startY; y < chunk.getMaxY(); y++) {
-                    final IBlockState blockState = chunk.getBlockState(x, y, z);
-                    final int color = bc.getStateColor(blockState);
+                    if (colors.isEmptySection(y)) {
+                        // skip the rest of the section
+                        y |= 15;
+                        continue;
+                    }
+                    final int color = colors.getColor(x, y, z);
                     int alpha = color >> 24 & 0xff;
 
                     if (color == -8650628) {
@@ -209,7 +266,7 @@ public class ChunkRender {
                 }
 
                 final int pixelOffset = offset + z * scanSize + x;
-                pixels[pixelOffset] = getColumnColor(bc, chunk, x, lastNonTransparentY, z, getPixelHeightW(pixels, pixelOffset, scanSize), getPixelHeightN(pixels, pixelOffset, scanSize));
+                pixels[pixelOffset] = this.getColumnColor(colors, chunk, x, lastNonTransparentY, z, getPixelHeightW(pixels, pixelOffset, scanSize), getPixelHeightN(pixels, pixelOffset, scanSize));
             }
         }
     }
@@ -0,0 +1,145 @@
+package mapwriter.region;
+
+import java.util.Arrays;
+
+/*
+ * Minimal LZ4 block compressor and decompressor.
+ *
+ * Uses the LZ4 block format (sequences of a token, literals, a 2 byte match
+ * offset and the match length) with a greedy single hash table match finder.
+ * It compresses a lot less than zlib but is several times faster, which is
+ * what matters for the MapWriter chunk cache.
+ *
+ * The caller has to store the uncompressed length, the block itself does not
+ * contain it.
+ */
+public class Lz4Block {
+    public static final int HASH_LOG = 14;
+    public static final int HASH_TABLE_SIZE = 1 << HASH_LOG;
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_DISTANCE = 0xffff;
+    // the LZ4 format requires the last 5 bytes to be literals and the last
+    // match to start at least 12 bytes before the end of the input
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+
+    // worst case size of the compressed data for 'length' bytes of input
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    // compress 'length' bytes of 'src' to 'dst' starting at 'dstOffset'.
+    // dst must have room for maxCompressedLength(length) bytes.
+    // 'hashTable' is scratch space of HASH_TABLE_SIZE ints.
+    // returns the compressed length.
+    public static int compress(byte[] src, int length, byte[] dst, int dstOffset, int[] hashTable) {
+        // table entries are positions + 1 so that 0 means empty
+        Arrays.fill(hashTable, 0);
+        final int matchLimit = length - MF_LIMIT;
+        final int extendLimit = length - LAST_LITERALS;
+        int op = dstOffset;
+        int anchor = 0;
+        int ip = 0;
+        while (ip < matchLimit) {
+            final int sequence = readInt(src, ip);
+            final int hash = sequence * -1640531535 >>> 32 - HASH_LOG;
+            final int ref = hashTable[hash] - 1;
+            hashTable[hash] = ip + 1;
+            if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                // skip ahead faster the longer no match has been found
+                ip += 1 + (ip - anchor >> 6);
+                continue;
+            }
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < extendLimit && src[ref + matchLength] == src[ip + matchLength]) {
+                matchLength++;
+            }
+            op = writeSequence(src, anchor, ip - anchor, dst, op, ip - ref, matchLength);
+            ip += matchLength;
+            anchor = ip;
+        }
+        return writeSequence(src, anchor, length - anchor, dst, op, 0, 0) - dstOffset;
+    }
+
+    // decompress 'length' bytes of 'src' starting at 'srcOffset' to 'dst'.
+    // returns the number of bytes written to dst.
+    // throws ArrayIndexOutOfBoundsException if the data is corrupt.
+    public static int decompress(byte[] src, int srcOffset, int length, byte[] dst) {
+        final int end = srcOffset + length;
+        int ip = srcOffset;
+        int op = 0;
+        while (ip < end) {
+            final int token = src[ip++] & 0xff;
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int b;
+                do {
+                    b = src[ip++] & 0xff;
+                    literalLength += b;
+                } while (b == 255);
+            }
+            System.arraycopy(src, ip, dst, op, literalLength);
+            ip += literalLength;
+            op += literalLength;
+            if (ip >= end) {
+                break;
+            }
+
+            final int offset = src[ip] & 0xff | (src[ip + 1] & 0xff) << 8;
+            ip += 2;
+            int matchLength = token & 15;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    b = src[ip++] & 0xff;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            int ref = op - offset;
+            if (offset == 0 || ref < 0) {
+                throw new ArrayIndexOutOfBoundsException("invalid match offset " + offset);
+            }
+            // matches can overlap the bytes they produce, so copy byte by byte
+            for (final int matchEnd = op + matchLength; op < matchEnd; ) {
+                dst[op++] = dst[ref++];
+            }
+        }
+        return op;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return b[i] & 0xff | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | b[i + 3] << 24;
+    }
+
+    // write the literals and (if matchLength > 0) the match of one sequence
+    private static int writeSequence(byte[] src, int literalStart, int literalLength, byte[] dst, int op, int offset, int matchLength) {
+        final int tokenPos = op++;
+        int token = Math.min(literalLength, 15) << 4;
+        op = writeLength(dst, op, literalLength);
+        System.arraycopy(src, literalStart, dst, op, literalLength);
+        op += literalLength;
+        if (matchLength > 0) {
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+            token |= Math.min(matchLength - MIN_MATCH, 15);
+            op = writeLength(dst, op, matchLength - MIN_MATCH);
+        }
+        dst[tokenPos] = (byte) token;
+        return op;
+    }
+
+    // write the extra length bytes for a token field
+    private static int writeLength(byte[] dst, int op, int length) {
+        if (length >= 15) {
+            length -= 15;
+            while (length >= 255) {
+                dst[op++] = (byte) 255;
+                length -= 255;
+            }
+            dst[op++] = (byte) length;
+        }
+        return op;
+    }
+}
@@ -1,14 +1,18 @@
 package mapwriter.region;
 
 import net.minecraft.block.state.IBlockState;
-import net.minecraft.world.biome.Biome;
 
 public interface MapChunk {
-    Biome getBiome(int x, int y, int z);
+    // ID of the biome of the column, 255 if it is not known
+    int getBiomeId(int x, int z);
 
     IBlockState getBlockState(int x, int y, int z);
 
     int getLightValue(int x, int y, int z);
 
     int getMaxY();
+
+    // y of the highest block in the column that could be visible, or any y
+    // above it. -1 if the column is empty.
+    int getTopBlockY(int x, int z);
 }
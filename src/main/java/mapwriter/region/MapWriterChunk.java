@@ -2,8 +2,6 @@ package mapwriter.region;
 
 import mapwriter.forge.MapWriterForge;
 import net.minecraft.block.state.IBlockState;
-import net.minecraft.client.Minecraft;
-import net.minecraft.init.Biomes;
 import net.minecraft.init.Blocks;
 import net.minecraft.nbt.CompressedStreamTools;
 import net.minecraft.nbt.NBTTagCompound;
@@ -12,7 +10,7 @@ import net.minecraft.tileentity.TileEntity;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.ChunkPos;
 import net.minecraft.world.DimensionType;
-import net.minecraft.world.biome.Biome;
+import net.minecraft.world.chunk.BlockStateContainer;
 import net.minecraft.world.chunk.Chunk;
 import net.minecraft.world.chunk.NibbleArray;
 import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
@@ -20,6 +18,7 @@ import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -29,92 +28,32 @@ public class MapWriterChunk implements MapChunk {
 
     // load from anvil file
     public static MapWriterChunk read(int x, int z, DimensionType dimension, RegionFileCache regionFileCache) {
-        final boolean flag = true;
-        byte[] biomeArray = null;
-        final ExtendedBlockStorage[] data = new ExtendedBlockStorage[16];
-        final Map<BlockPos, TileEntity> teMap = new HashMap<>();
-
-        DataInputStream dis = null;
         final RegionFile regionFile = regionFileCache.getRegionFile(x << 4, z << 4, dimension);
         if (!regionFile.isOpen() && regionFile.exists()) {
 
             regionFile.open();
         }
+        return read(x, z, dimension, regionFile);
+    }
 
+    // load from an already opened anvil file. does not use the region file
+    // cache, so it can be called from several threads at once.
+    // only the block data and biomes needed for rendering are read, tile
+    // entities, entities and light are skipped (see ChunkNbtReader).
+    public static MapWriterChunk read(int x, int z, DimensionType dimension, RegionFile regionFile) {
+        final ChunkNbtReader reader = new ChunkNbtReader(false, false);
+
+        DataInputStream dis = null;
         if (regionFile.isOpen()) {
             dis = regionFile.getChunkDataInputStream(x & 31, z & 31);
         }
 
         if (dis != null) {
             try {
-
-                // chunk NBT structure:
-                //
-                // COMPOUND ""
-                // COMPOUND "level"
-                // INT "xPos"
-                // INT "zPos"
-                // LONG "LastUpdate"
-                // BYTE "TerrainPopulated"
-                // BYTE_ARRAY "Biomes"
-                // INT_ARRAY "HeightMap"
-                // LIST(COMPOUND) "Sections"
-                // BYTE "Y"
-                // BYTE_ARRAY "Blocks"
-                // BYTE_ARRAY "Add"
-                // BYTE_ARRAY "Data"
-                // BYTE_ARRAY "BlockLight"
-                // BYTE_ARRAY "SkyLight"
-                // END
-                // LIST(COMPOUND) "Entities"
-                // LIST(COMPOUND) "TileEntities"
-                // LIST(COMPOUND) "TileTicks"
-                // END
-                // END
-                final NBTTagCompound nbttagcompound = CompressedStreamTools.read(dis);
-                final NBTTagCompound level = nbttagcompound.getCompoundTag("Level");
-
-                final int xNbt = level.getInteger("xPos");
-                final int zNbt = level.getInteger("zPos");
-
-                if (xNbt != x || zNbt != z) {
-                    MapWriterForge.LOGGER.warn("chunk ({}, {}) has NBT coords ({}, {})", x, z, xNbt, zNbt);
-                }
-
-                final NBTTagList sections = level.getTagList("Sections", 10);
-
-                for (int k = 0; k < sections.tagCount(); ++k) {
-                    final NBTTagCompound section = sections.getCompoundTagAt(k);
-                    final int y = section.getByte("Y");
-                    final ExtendedBlockStorage extendedblockstorage = new ExtendedBlockStorage(y << 4, flag);
-                    final byte[] abyte = nbttagcompound.getByteArray("Blocks");
-                    final NibbleArray nibblearray = new NibbleArray(nbttagcompound.getByteArray("Data"));
-                    final NibbleArray nibblearray1 = nbttagcompound.hasKey("Add", 7) ? new NibbleArray(nbttagcompound.getByteArray("Add")) : null;
-                    extendedblockstorage.getData().setDataFromNBT(abyte, nibblearray, nibblearray1);
-                    extendedblockstorage.setBlockLight(new NibbleArray(nbttagcompound.getByteArray("BlockLight")));
-
-                    if (flag) {
-                        extendedblockstorage.setSkyLight(new NibbleArray(nbttagcompound.getByteArray("SkyLight")));
-                    }
-
-                    extendedblockstorage.recalculateRefCounts();
-                    data[y] = extendedblockstorage;
+                reader.read(dis);
+                if (reader.xPos != x || reader.zPos != z) {
+                    MapWriterForge.LOGGER.warn("chunk ({}, {}) has NBT coords ({}, {})", x, z, reader.xPos, reader.zPos);
                 }
-
-                biomeArray = level.getByteArray("Biomes");
-
-                final NBTTagList nbttaglist2 = level.getTagList("TileEntities", 10);
-
-                if (nbttaglist2 != null) {
-                    for (int i1 = 0; i1 < nbttaglist2.tagCount(); ++i1) {
-                        final NBTTagCompound nbttagcompound4 = nbttaglist2.getCompoundTagAt(i1);
-                        final TileEntity tileentity = TileEntity.create(null, nbttagcompound4);
-                        if (tileentity != null) {
-                            teMap.put(tileentity.getPos(), tileentity);
-                        }
-                    }
-                }
-
             } catch (final IOException e) {
                 MapWriterForge.LOGGER.error("{}: could not read chunk ({}, {}) from region file\n", e, x, z);
             } finally {
@@ -126,7 +65,7 @@ public class MapWriterChunk implements MapChunk {
             }
         }
 
-        return new MapWriterChunk(x, z, dimension, data, biomeArray, teMap);
+        return new MapWriterChunk(x, z, dimension, reader.sections, reader.biomes, new HashMap<>());
     }
 
     public final int x;
@@ -143,6 +82,10 @@ public class MapWriterChunk implements MapChunk {
 
     public final int maxY;
 
+    // y of the highest non-air block of each column, indexed by (z << 4) | x,
+    // -1 for empty columns. computed the first time it is needed.
+    private int[] heightMap = null;
+
     public MapWriterChunk(int x, int z, DimensionType dimension, ExtendedBlockStorage[] data, byte[] biomeArray, Map<BlockPos, TileEntity> teMap) {
         this.x = x;
         this.z = z;
@@ -160,16 +103,8 @@ public class MapWriterChunk implements MapChunk {
     }
 
     @Override
-    public Biome getBiome(int x, int y, int z) {
-        final int localX = x & 15;
-        final int localZ = z & 15;
-        int bid = this.biomeArray[localZ << 4 | localX] & 255;
-
-        if (bid == 255) {
-            return Minecraft.getMinecraft().world.getBiomeProvider().getBiome(new BlockPos(x, y, z), Biomes.PLAINS);
-        } else {
-            return Biome.getBiome(bid);
-        }
+    public int getBiomeId(int x, int z) {
+        return this.biomeArray != null && this.biomeArray.length == 256 ? this.biomeArray[(z & 15) << 4 | x & 15] & 255 : 255;
     }
 
     @Override
@@ -178,6 +113,39 @@ public class MapWriterChunk implements MapChunk {
         return this.dataArray != null && this.dataArray[yi] != null ? this.dataArray[yi].getData().get(x & 15, y & 15, z & 15) : Blocks.AIR.getDefaultState();
     }
 
+    @Override
+    public int getTopBlockY(int x, int z) {
+        if (this.heightMap == null) {
+            this.heightMap = this.createHeightMap();
+        }
+        return this.heightMap[(z & 15) << 4 | x & 15];
+    }
+
+    // scan the sections from the top down, skipping empty ones, until the
+    // highest block of every column has been found
+    private int[] createHeightMap() {
+        final int[] heightMap = new int[256];
+        Arrays.fill(heightMap, -1);
+        final IBlockState air = Blocks.AIR.getDefaultState();
+        int remaining = heightMap.length;
+        for (int yi = 15; yi >= 0 && remaining > 0; yi--) {
+            final ExtendedBlockStorage storage = this.dataArray != null ? this.dataArray[yi] : null;
+            if (storage == null || storage.isEmpty()) {
+                continue;
+            }
+            final BlockStateContainer data = storage.getData();
+            for (int y = 15; y >= 0 && remaining > 0; y--) {
+                for (int i = 0; i < heightMap.length; i++) {
+                    if (heightMap[i] < 0 && data.get(i & 15, y, i >> 4) != air) {
+                        heightMap[i] = yi << 4 | y;
+                        remaining--;
+                    }
+                }
+            }
+        }
+        return heightMap;
+    }
+
     public Long getCoordIntPair() {
         return ChunkPos.asLong(this.x, this.z);
     }
@@ -201,9 +169,19 @@ public class MapWriterChunk implements MapChunk {
         return String.format("(%d, %d) dim %s", this.x, this.z, this.dimension.getName());
     }
 
-    public synchronized boolean write(RegionFileCache regionFileCache) {
+    // chunks of different region files can be written by several threads at
+    // once, the region file is kept open by acquire() until it is released
+    public boolean write(RegionFileCache regionFileCache) {
+        final RegionFile regionFile = regionFileCache.acquire(this.x << 4, this.z << 4, this.dimension);
+        try {
+            return this.write(regionFile);
+        } finally {
+            regionFileCache.release(regionFile);
+        }
+    }
+
+    private boolean write(RegionFile regionFile) {
         boolean error = false;
-        final RegionFile regionFile = regionFileCache.getRegionFile(this.x << 4, this.z << 4, this.dimension);
         if (!regionFile.isOpen()) {
             error = regionFile.open();
         }
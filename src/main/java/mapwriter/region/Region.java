@@ -2,7 +2,10 @@ package mapwriter.region;
 
 import net.minecraft.world.DimensionType;
 
+import java.awt.Rectangle;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 /*
  * MwRegion class Represents a 32x32 chunk area (512x512 blocks).
@@ -39,6 +42,15 @@ public class Region {
 
     public SurfacePixels surfacePixels;
 
+    // set while the region is rendered by RegionRebuilder or a chunk update,
+    // so that it is not closed by the region cache
+    boolean pinned = false;
+
+    // chunks of this zoom level 0 region changed since the higher zoom levels
+    // were last updated, one int per row of chunks with one bit per chunk.
+    // null if there are none. see RegionManager.updateChunk().
+    int[] dirtyChunks = null;
+
     public Region(RegionManager regionManager, int x, int z, int zoomLevel, DimensionType dimension) {
         this.regionManager = regionManager;
 
@@ -54,6 +66,14 @@ public class Region {
         this.surfacePixels = new SurfacePixels(this, surfaceImageFile);
     }
 
+    // remember a changed chunk for updateDirtyZoomLevels()
+    public void addDirtyChunk(int chunkX, int chunkZ) {
+        if (this.dirtyChunks == null) {
+            this.dirtyChunks = new int[32];
+        }
+        this.dirtyChunks[chunkZ & 31] |= 1 << (chunkX & 31);
+    }
+
     public void clear() {
         this.surfacePixels.clear();
     }
@@ -99,6 +119,14 @@ public class Region {
         return this.surfacePixels.getPixels();
     }
 
+    public int getRenderStamp() {
+        return this.surfacePixels.getRenderStamp();
+    }
+
+    public void setRenderStamp(int renderStamp) {
+        this.surfacePixels.setRenderStamp(renderStamp);
+    }
+
     public boolean isAreaWithin(int x, int z, int w, int h, DimensionType dimension) {
         return x >= this.x && z >= this.z && x + w <= this.x + this.size && z + h <= this.z + this.size && dimension == this.dimension;
     }
@@ -114,6 +142,38 @@ public class Region {
         }
     }
 
+    // update the higher zoom levels from the chunks changed since the last
+    // call. returns the updated areas in world block coordinates.
+    // the changed chunks are covered with as few rectangles as is easy to
+    // find, so that each rectangle is scaled down once. the rectangles only
+    // cover changed chunks, as scaling unchanged chunks that have never been
+    // rendered would make them opaque in the higher zoom levels.
+    public List<Rectangle> updateDirtyZoomLevels() {
+        final List<Rectangle> areas = new ArrayList<>();
+        final int[] rows = this.dirtyChunks;
+        this.dirtyChunks = null;
+        if (rows != null) {
+            for (int cz = 0; cz < rows.length; cz++) {
+                while (rows[cz] != 0) {
+                    // the first run of changed chunks in this row, extended
+                    // down over the rows that contain the same run
+                    final int cx = Integer.numberOfTrailingZeros(rows[cz]);
+                    final int w = Integer.numberOfTrailingZeros(~(rows[cz] >>> cx));
+                    final int run = (int) ((1L << w) - 1 << cx);
+                    int h = 0;
+                    while (cz + h < rows.length && (rows[cz + h] & run) == run) {
+                        rows[cz + h] &= ~run;
+                        h++;
+                    }
+                    final Rectangle area = new Rectangle(this.x + (cx << 4), this.z + (cz << 4), w << 4, h << 4);
+                    this.updateZoomLevels(area.x, area.y, area.width, area.height);
+                    areas.add(area);
+                }
+            }
+        }
+        return areas;
+    }
+
     // scale an area of pixels by half in this region and write them
     // to the pixels of the next zoom level region.
     // x, z, w, h, in world block coordinates
@@ -126,8 +186,10 @@ public class Region {
             final int dstZoomLevel = this.zoomLevel + 1;
             if (dstZoomLevel <= this.regionManager.maxZoom) {
                 dstRegion = this.regionManager.getRegion(x, z, dstZoomLevel, this.dimension);
-                final int dstW = Math.max(1, w >> dstRegion.zoomLevel);
-                final int dstH = Math.max(1, h >> dstRegion.zoomLevel);
+                // all destination pixels the area touches, the area does
+                // not have to be aligned to the destination pixels
+                final int dstW = (x + w - 1 >> dstRegion.zoomLevel) - (x >> dstRegion.zoomLevel) + 1;
+                final int dstH = (z + h - 1 >> dstRegion.zoomLevel) - (z >> dstRegion.zoomLevel) + 1;
 
                 // AND srcX and srcZ by -2 (0xfffffffe) to make sure that
                 // they are always even. This prevents out of bounds exceptions
@@ -3,39 +3,77 @@ package mapwriter.region;
 import mapwriter.forge.MapWriterForge;
 
 import java.io.*;
-import java.util.ArrayList;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
-import java.util.List;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.InflaterInputStream;
 
 /*
  * Anvil region file reader/writer implementation. This code is very similar to
  * RegionFile and RegionFileChunkBuffer from Minecraft. Not sure if it would
  * have been better just to use the Minecraft code.
+ *
+ * getChunkDataInputStream() and getChunkTimestamp() may be called by several
+ * threads at once, as long as no chunks are written or queued meanwhile.
  */
 
 public class RegionFile {
 
-    // basically an in memory byte array that writes its contents
-    // to a file when it is closed.
+    // basically an in memory byte array that compresses its contents and
+    // writes them to a file when it is closed.
+    // uses the shared chunk buffer of the thread's codec when it is free.
     private class RegionFileChunkBuffer extends ByteArrayOutputStream {
         private final int x;
         private final int z;
         private final RegionFile regionFile;
+        private final RegionFileCodec codec;
+        private final boolean pooled;
+        private boolean closed = false;
 
         public RegionFileChunkBuffer(RegionFile regionFile, int x, int z) {
 
-            super(8096);
+            super(0);
             this.regionFile = regionFile;
             this.x = x;
             this.z = z;
+            this.codec = RegionFileCodec.get();
+            final byte[] sharedBuffer = this.codec.acquireBuffer();
+            this.pooled = sharedBuffer != null;
+            this.buf = this.pooled ? sharedBuffer : new byte[8096];
         }
 
         @Override
         public void close() {
 
-            this.regionFile.writeCompressedChunk(this.x, this.z, this.buf, this.count);
+            if (!this.closed) {
+                this.closed = true;
+                final RegionFileCodec.Compression compression = this.regionFile.compression;
+                final int length = this.codec.compress(this.buf, this.count, compression);
+                this.regionFile.writeCompressedChunk(this.x, this.z, compression.version, this.codec.getCompressedBuffer(), length);
+                if (this.pooled) {
+                    this.codec.releaseBuffer(this.buf);
+                }
+                this.buf = null;
+            }
+        }
+    }
+
+    // compressed chunk data waiting to be written by flushPendingChunks()
+    private class PendingChunk {
+        final byte version;
+        final byte[] data;
+        final int length;
+
+        PendingChunk(byte version, byte[] data, int length) {
+
+            this.version = version;
+            this.data = data;
+            this.length = length;
         }
     }
 
@@ -60,23 +98,65 @@ public class RegionFile {
         }
     }
 
+    // flush the pending chunks once this much data has been queued, to put a
+    // limit on the memory used by large batches.
+    private static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+    private static final ByteBuffer ZERO_SECTOR = ByteBuffer.allocateDirect(4096);
+
     private final File file;
+    private final boolean memoryMapped;
+    // compression used for chunks written to this file. chunks are read
+    // using the version byte stored with them, whatever this is set to.
+    private final RegionFileCodec.Compression compression;
+    // read only files are opened with mode "r", are never created and
+    // refuse all writes
+    private final boolean readOnly;
+    // number of threads using this file through RegionFileCache, guarded by
+    // the cache. files that are in use are not closed by the cache.
+    int users = 0;
 
     private int lengthInSectors = 0;
     private RandomAccessFile fin = null;
+    // read only mapping of the whole file, only used if memoryMapped is set.
+    // it is dropped whenever the file is written to and recreated on the next
+    // read, so that it always covers the current length of the file.
+    private MappedByteBuffer mappedBuffer = null;
     private final Section[] chunkSectionsArray = new Section[4096];
 
     private final int[] timestampArray = new int[4096];
 
-    private List<Boolean> filledSectorArray = null;
+    private SectorAllocator sectors = null;
+
+    // while batchWrites is set chunks are queued in pendingChunks (indexed by
+    // chunk index) instead of being written immediately.
+    private boolean batchWrites = false;
+    private final PendingChunk[] pendingChunks = new PendingChunk[1024];
+    private int pendingCount = 0;
+    private int pendingBytes = 0;
 
     public RegionFile(File file) {
 
+        this(file, false, RegionFileCodec.Compression.ZLIB);
+    }
+
+    public RegionFile(File file, boolean memoryMapped, RegionFileCodec.Compression compression) {
+
+        this(file, memoryMapped, compression, false);
+    }
+
+    public RegionFile(File file, boolean memoryMapped, RegionFileCodec.Compression compression, boolean readOnly) {
+
         this.file = file;
+        this.memoryMapped = memoryMapped;
+        this.compression = compression;
+        this.readOnly = readOnly;
     }
 
     public void close() {
 
+        this.flushPendingChunks();
+        this.mappedBuffer = null;
         if (this.fin != null) {
             try {
                 this.fin.close();
@@ -85,6 +165,141 @@ public class RegionFile {
         }
     }
 
+    // close the file and free its mapping now rather than when the buffer is
+    // garbage collected. some systems (Windows) cannot replace or delete a
+    // file while it is mapped. must not be called while another thread may
+    // read the file.
+    void closeAndUnmap() {
+
+        final MappedByteBuffer buffer = this.mappedBuffer;
+        this.close();
+        if (buffer != null) {
+            unmap(buffer);
+        }
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+
+        try {
+            try {
+                // java 9 and later
+                final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                final Field unsafeField = unsafeClass.getDeclaredField("theUnsafe");
+                unsafeField.setAccessible(true);
+                unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(unsafeField.get(null), buffer);
+            } catch (final NoSuchMethodException e) {
+                // java 8
+                final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                final Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (final ReflectiveOperationException | RuntimeException e) {
+            MapWriterForge.LOGGER.debug("could not unmap region file buffer: {}", e);
+        }
+    }
+
+    // rewrite the region file with all chunks stored one after the other
+    // directly after the header, then replace the original file with it.
+    // the chunks are copied in the order of their current position in the
+    // file so that the relative layout is kept.
+    // returns the number of bytes the file shrank by, or -1 on error.
+    // no other thread may use the file meanwhile, see
+    // RegionFileCache.acquireForCompaction().
+    public long compact() {
+
+        if (this.fin == null || this.readOnly || this.flushPendingChunks()) {
+            return -1;
+        }
+
+        final Integer[] chunkOrder = new Integer[1024];
+        for (int i = 0; i < 1024; i++) {
+            chunkOrder[i] = i;
+        }
+        Arrays.sort(chunkOrder, (a, b) -> Integer.compare(this.getStartSector(a), this.getStartSector(b)));
+
+        final long oldLength = this.file.length();
+        final File tmpFile = new File(this.file.getParentFile(), this.file.getName() + ".tmp");
+        final Section[] newSections = new Section[1024];
+        boolean error = true;
+        try (RandomAccessFile fout = new RandomAccessFile(tmpFile, "rw")) {
+            final FileChannel src = this.fin.getChannel();
+            final FileChannel dst = fout.getChannel();
+            final ByteBuffer lengthBuf = ByteBuffer.allocate(4);
+            fout.setLength(0);
+            int sector = SectorAllocator.HEADER_SECTORS;
+            for (final int i : chunkOrder) {
+                final Section section = this.chunkSectionsArray[i];
+                if (section == null || section.length <= 0) {
+                    continue;
+                }
+                // the length at the start of the chunk includes the version
+                // byte but not the length itself
+                lengthBuf.clear();
+                src.read(lengthBuf, section.startSector * 4096L);
+                lengthBuf.flip();
+                final int length = lengthBuf.remaining() == 4 ? lengthBuf.getInt() : 0;
+                if (length <= 1 || length + 4 > section.length * 4096) {
+                    MapWriterForge.LOGGER.error("dropping chunk {} with invalid data length ({}) while compacting {}", i, length, this.file);
+                    continue;
+                }
+                long position = section.startSector * 4096L;
+                final long endPosition = position + length + 4;
+                dst.position(sector * 4096L);
+                while (position < endPosition) {
+                    final long count = src.transferTo(position, endPosition - position, dst);
+                    if (count <= 0) {
+                        throw new EOFException("unexpected end of file in chunk " + i);
+                    }
+                    position += count;
+                }
+                final int requiredSectors = getRequiredSectors(length - 1);
+                newSections[i] = new Section(sector, requiredSectors);
+                sector += requiredSectors;
+            }
+            fout.setLength(sector * 4096L);
+
+            final ByteBuffer header = ByteBuffer.allocate(8192);
+            for (int i = 0; i < 1024; i++) {
+                header.putInt(newSections[i] != null ? newSections[i].getSectorAndSize() : 0);
+            }
+            for (int i = 0; i < 1024; i++) {
+                header.putInt(newSections[i] != null ? this.timestampArray[i] : 0);
+            }
+            header.flip();
+            long headerPosition = 0;
+            while (header.hasRemaining()) {
+                headerPosition += dst.write(header, headerPosition);
+            }
+            error = false;
+        } catch (final IOException e) {
+            MapWriterForge.LOGGER.error("could not write compacted region file {}: {}", tmpFile, e);
+        }
+
+        // replace the region file with the compacted one and open it again
+        this.closeAndUnmap();
+        if (!error) {
+            try {
+                try {
+                    Files.move(tmpFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (final AtomicMoveNotSupportedException e) {
+                    Files.move(tmpFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (final IOException e) {
+                MapWriterForge.LOGGER.error("could not replace {} with compacted region file: {}", this.file, e);
+                error = true;
+            }
+        }
+        if (error) {
+            tmpFile.delete();
+        }
+        this.open();
+
+        return error ? -1 : oldLength - this.file.length();
+    }
+
     public boolean exists() {
 
         return this.file.isFile();
@@ -94,24 +309,33 @@ public class RegionFile {
 
         DataInputStream dis = null;
         if (this.fin != null) {
+            // make sure chunks still waiting in a batch can be read back
+            this.flushPendingChunks();
             final Section section = this.getChunkSection(x, z);
-            if (section != null && section.length > 0) {
+            if (section != null && section.length > 0 && this.memoryMapped) {
+                dis = this.getMappedChunkDataInputStream(x, z, section);
+            } else if (section != null && section.length > 0) {
                 final int offset = section.startSector * 4096;
                 try {
                     // read length of following data (includes version byte) and
-                    // compressed data version byte
-                    this.fin.seek(offset);
-                    final int length = this.fin.readInt();
-                    final byte version = this.fin.readByte();
+                    // compressed data version byte.
+                    // positional reads are used instead of seek() so that
+                    // several threads can read chunks at the same time.
+                    final FileChannel channel = this.fin.getChannel();
+                    final ByteBuffer chunkHeader = ByteBuffer.allocate(5);
+                    readFully(channel, chunkHeader, offset);
+                    chunkHeader.flip();
+                    final int length = chunkHeader.getInt();
+                    final byte version = chunkHeader.get();
                     // version 1 = gzip compressed, version 2 = zlib/inflater
-                    // compressed
-                    if (length > 1 && length + 4 < section.length * 4096 && version == 2) {
-                        // read the compressed data
-                        final byte[] compressedChunkData = new byte[length - 1];
-                        this.fin.read(compressedChunkData);
-                        // create a buffered inflater stream on the compressed
-                        // data
-                        dis = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(compressedChunkData))));
+                    // compressed, see RegionFileCodec for the others
+                    if (length > 1 && length + 4 <= section.length * 4096 && RegionFileCodec.isSupportedVersion(version)) {
+                        // read the compressed data into the codec's buffer
+                        final RegionFileCodec codec = RegionFileCodec.get();
+                        final byte[] compressedChunkData = codec.getCompressedBuffer(length - 1);
+                        readFully(channel, ByteBuffer.wrap(compressedChunkData, 0, length - 1), offset + 5L);
+                        // decompress it to the codec's chunk buffer
+                        dis = codec.decompress(version, compressedChunkData, 0, length - 1);
                     } else {
                         MapWriterForge.LOGGER.error("data length ({}) or version ({}) invalid for chunk ({}, {})", length, version, x, z);
                     }
@@ -124,9 +348,192 @@ public class RegionFile {
         return dis;
     }
 
+    // same as the RandomAccessFile path of getChunkDataInputStream, but the
+    // compressed data is taken from a slice of the mapped file.
+    private DataInputStream getMappedChunkDataInputStream(int x, int z, Section section) {
+
+        DataInputStream dis = null;
+        final int offset = section.startSector * 4096;
+        try {
+            final ByteBuffer buf = this.getMappedBuffer().duplicate();
+            if (offset + 5 <= buf.limit()) {
+                buf.position(offset);
+                final int length = buf.getInt();
+                final byte version = buf.get();
+                if (length > 1 && length + 4 <= section.length * 4096 && offset + 4 + length <= buf.limit() && RegionFileCodec.isSupportedVersion(version)) {
+                    buf.limit(offset + 4 + length);
+                    dis = RegionFileCodec.get().decompress(version, buf);
+                } else {
+                    MapWriterForge.LOGGER.error("data length ({}) or version ({}) invalid for chunk ({}, {})", length, version, x, z);
+                }
+            } else {
+                MapWriterForge.LOGGER.error("chunk ({}, {}) starts past the end of the file", x, z);
+            }
+        } catch (final Exception e) {
+            MapWriterForge.LOGGER.error("exception while reading chunk ({}, {}): {}", x, z, e);
+            dis = null;
+        }
+        return dis;
+    }
+
+    private synchronized MappedByteBuffer getMappedBuffer() throws IOException {
+
+        if (this.mappedBuffer == null) {
+            final FileChannel channel = this.fin.getChannel();
+            this.mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        return this.mappedBuffer;
+    }
+
+    // returns the time the chunk was last written, or 0 if it was never
+    // written since timestamps were added.
+    public int getChunkTimestamp(int x, int z) {
+
+        // queued chunks have not been given a timestamp yet
+        this.flushPendingChunks();
+        return this.timestampArray[(z & 31) << 5 | x & 31];
+    }
+
+    // fraction of the file (excluding the header) that is not used by chunk
+    // data, either free sectors between chunks or unused space at the end.
+    public double getFragmentation() {
+
+        if (this.fin == null) {
+            return 0.0;
+        }
+        this.flushPendingChunks();
+        final int fileSectors = (int) ((this.file.length() + 4095L) / 4096L);
+        final int dataSectors = Math.max(fileSectors, this.sectors.getEnd()) - SectorAllocator.HEADER_SECTORS;
+        final int unusedSectors = this.sectors.getFreeSectors() + Math.max(0, fileSectors - this.sectors.getEnd());
+        return dataSectors > 0 ? (double) unusedSectors / dataSectors : 0.0;
+    }
+
     public DataOutputStream getChunkDataOutputStream(int x, int z) {
 
-        return new DataOutputStream(new DeflaterOutputStream(new RegionFileChunkBuffer(this, x, z)));
+        return new DataOutputStream(new RegionFileChunkBuffer(this, x, z));
+    }
+
+    // write all chunks queued while batchWrites was set.
+    // chunks that still fit in their current section are rewritten in place.
+    // the others are placed one after the other in a single free section of
+    // the file and written with one gathering write. the location and
+    // timestamp tables are only updated, and the old sections only freed,
+    // once all chunks have been written, so a failed write leaves the file
+    // pointing at the old chunk data.
+    // returns true on error.
+    public boolean flushPendingChunks() {
+
+        if (this.pendingCount == 0 || this.fin == null) {
+            return false;
+        }
+        this.mappedBuffer = null;
+
+        // find the new section of every pending chunk. the chunks that have
+        // to move get their sector within the new run relative to its start.
+        final Section[] newSections = new Section[this.pendingChunks.length];
+        final boolean[] moved = new boolean[this.pendingChunks.length];
+        int movedSectors = 0;
+        int movedCount = 0;
+        for (int i = 0; i < this.pendingChunks.length; i++) {
+            final PendingChunk chunk = this.pendingChunks[i];
+            if (chunk != null) {
+                final int requiredSectors = getRequiredSectors(chunk.length);
+                final Section currentSection = this.chunkSectionsArray[i];
+                if (currentSection != null && requiredSectors <= currentSection.length) {
+                    newSections[i] = new Section(currentSection.startSector, requiredSectors);
+                } else {
+                    newSections[i] = new Section(movedSectors, requiredSectors);
+                    moved[i] = true;
+                    movedSectors += requiredSectors;
+                    movedCount++;
+                }
+            }
+        }
+        final int startSector = movedSectors > 0 ? this.sectors.allocate(movedSectors) : 0;
+
+        boolean error = true;
+        boolean committed = false;
+        try {
+            final FileChannel channel = this.fin.getChannel();
+            final ByteBuffer[] buffers = new ByteBuffer[movedCount * 3];
+            int n = 0;
+            for (int i = 0; i < this.pendingChunks.length; i++) {
+                final PendingChunk chunk = this.pendingChunks[i];
+                if (chunk == null) {
+                    continue;
+                }
+                if (moved[i]) {
+                    newSections[i] = new Section(startSector + newSections[i].startSector, newSections[i].length);
+                    n = this.putChunkBuffers(buffers, n, chunk, newSections[i].length);
+                } else {
+                    final ByteBuffer[] chunkBuffers = new ByteBuffer[3];
+                    this.putChunkBuffers(chunkBuffers, 0, chunk, newSections[i].length);
+                    writeFully(channel, chunkBuffers, newSections[i].startSector * 4096L, newSections[i].length * 4096L);
+                }
+            }
+            if (movedSectors > 0) {
+                writeFully(channel, buffers, startSector * 4096L, movedSectors * 4096L);
+            }
+
+            // all chunks are on disk, switch the tables over to them
+            final int timestamp = getCurrentTimestamp();
+            for (int i = 0; i < this.pendingChunks.length; i++) {
+                if (newSections[i] != null) {
+                    final Section currentSection = this.chunkSectionsArray[i];
+                    if (moved[i] && currentSection != null) {
+                        this.sectors.free(currentSection.startSector, currentSection.length);
+                    } else if (!moved[i]) {
+                        // free the sectors at the end that are no longer needed
+                        this.sectors.free(currentSection.startSector + newSections[i].length, currentSection.length - newSections[i].length);
+                    }
+                    this.chunkSectionsArray[i] = newSections[i];
+                    this.timestampArray[i] = timestamp;
+                }
+            }
+            committed = true;
+            if (startSector + movedSectors + 1 > this.lengthInSectors) {
+                this.lengthInSectors = startSector + movedSectors + 1;
+            }
+            this.writeHeader();
+            error = false;
+        } catch (final IOException e) {
+            MapWriterForge.LOGGER.error("could not write pending chunks to region file {}: {}", this.file, e);
+        }
+        if (!committed && movedSectors > 0) {
+            // the tables still point at the old sections, give back the new run
+            this.sectors.free(startSector, movedSectors);
+        }
+
+        Arrays.fill(this.pendingChunks, null);
+        this.pendingCount = 0;
+        this.pendingBytes = 0;
+        return error;
+    }
+
+    // add the buffers for a chunk written as a 5 byte length and version
+    // header, the compressed data and zero padding to the end of its last
+    // sector. returns the index after the last buffer added.
+    private int putChunkBuffers(ByteBuffer[] buffers, int n, PendingChunk chunk, int sectorCount) {
+
+        final ByteBuffer chunkHeader = ByteBuffer.allocate(5);
+        chunkHeader.putInt(chunk.length + 1);
+        chunkHeader.put(chunk.version);
+        chunkHeader.flip();
+        buffers[n++] = chunkHeader;
+        buffers[n++] = ByteBuffer.wrap(chunk.data, 0, chunk.length);
+        final ByteBuffer padding = ZERO_SECTOR.duplicate();
+        padding.limit(sectorCount * 4096 - chunk.length - 5);
+        buffers[n++] = padding;
+        return n;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer[] buffers, long position, long length) throws IOException {
+
+        channel.position(position);
+        long remaining = length;
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
     }
 
     public boolean isOpen() {
@@ -134,8 +541,30 @@ public class RegionFile {
         return this.fin != null;
     }
 
+    // queue chunk writes until flushPendingChunks() is called or batching is
+    // turned off again.
+    // returns true if the queued chunks could not be written.
+    public boolean setBatchWrites(boolean batchWrites) {
+
+        this.batchWrites = batchWrites;
+        return !batchWrites && this.flushPendingChunks();
+    }
+
+    public File getFile() {
+
+        return this.file;
+    }
+
+    public boolean isReadOnly() {
+
+        return this.readOnly;
+    }
+
     public boolean open() {
 
+        if (this.readOnly && !this.file.isFile()) {
+            return true;
+        }
         final File dir = this.file.getParentFile();
         if (dir.exists()) {
             if (!dir.isDirectory()) {
@@ -149,14 +578,15 @@ public class RegionFile {
             }
         }
         try {
-            this.fin = new RandomAccessFile(this.file, "rw");
+            this.fin = new RandomAccessFile(this.file, this.readOnly ? "r" : "rw");
+            this.mappedBuffer = null;
 
             // seek to start
             this.fin.seek(0);
 
             this.lengthInSectors = (int) ((this.fin.length() + 4095L) / 4096L);
 
-            this.filledSectorArray = new ArrayList<>();
+            this.sectors = new SectorAllocator();
 
             Arrays.fill(this.chunkSectionsArray, null);
             Arrays.fill(this.timestampArray, 0);
@@ -164,7 +594,7 @@ public class RegionFile {
             if (this.lengthInSectors < 3) {
                 // no chunk data
                 // fill chunk and timestamp tables with 0's
-                for (int i = 0; i < 2048; i++) {
+                for (int i = 0; i < 2048 && !this.readOnly; i++) {
                     this.fin.writeInt(0);
                 }
             } else {
@@ -173,9 +603,9 @@ public class RegionFile {
                     final Section section = new Section(this.fin.readInt());
                     if (section.length > 0) {
                         // make sure chunk does not overlap another
-                        if (!this.checkSectionOverlaps(section)) {
+                        if (!this.sectors.overlaps(section.startSector, section.length)) {
                             this.chunkSectionsArray[i] = section;
-                            this.setFilledSectorArray(section, true);
+                            this.sectors.markFilled(section.startSector, section.length);
                         } else {
                             MapWriterForge.LOGGER.error("chunk {} overlaps another chunk, file may be corrupt", i);
                         }
@@ -184,6 +614,7 @@ public class RegionFile {
                 for (int i = 0; i < 1024; i++) {
                     this.timestampArray[i] = this.fin.readInt();
                 }
+                this.sectors.rebuildFreeRuns();
             }
 
             // this.printInfo();
@@ -202,8 +633,8 @@ public class RegionFile {
         int freeCount = 0;
         int filledCount = 0;
         // start at 2 to skip headers
-        for (int i = 2; i < this.filledSectorArray.size(); i++) {
-            if (this.filledSectorArray.get(i)) {
+        for (int i = SectorAllocator.HEADER_SECTORS; i < this.sectors.getEnd(); i++) {
+            if (this.sectors.isFilled(i)) {
                 filledCount++;
             } else {
                 freeCount++;
@@ -213,11 +644,11 @@ public class RegionFile {
 
         String s = "";
         int i;
-        for (i = 0; i < this.filledSectorArray.size(); i++) {
+        for (i = 0; i < this.sectors.getEnd(); i++) {
             if ((i & 31) == 0) {
                 s = String.format("%04x:", i);
             }
-            s += this.filledSectorArray.get(i) ? '1' : '0';
+            s += this.sectors.isFilled(i) ? '1' : '0';
             if ((i & 31) == 31) {
                 MapWriterForge.LOGGER.info("{}", s);
             }
@@ -233,85 +664,38 @@ public class RegionFile {
         return String.format("{}", this.file);
     }
 
-    private boolean checkSectionOverlaps(Section section) {
+    // timestamps are stored as seconds since the epoch, the same as in
+    // Minecraft region files.
+    public static int getCurrentTimestamp() {
 
-        // get end sector, limiting to length of the filled sector array as all
-        // sectors past the
-        // end of the file are assumed free.
-        final int endSector = Math.min(section.startSector + section.length, this.filledSectorArray.size());
-        boolean overlaps = false;
-        for (int i = section.startSector; i < endSector; i++) {
-            if (this.filledSectorArray.get(i)) {
-                overlaps = true;
-            }
-        }
-        return overlaps;
+        return (int) (System.currentTimeMillis() / 1000L);
     }
 
-    private Section getChunkSection(int x, int z) {
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
 
-        return this.chunkSectionsArray[(z & 31) << 5 | x & 31];
+        while (dst.hasRemaining()) {
+            final int count = channel.read(dst, position);
+            if (count < 0) {
+                throw new EOFException("unexpected end of region file");
+            }
+            position += count;
+        }
     }
 
-    private Section getFreeSection(int requiredLength) {
+    private static int getRequiredSectors(int length) {
 
-        int start = 0;
-        int length = 0;
-        int closestStart = 0;
-        int closestLength = Integer.MAX_VALUE;
-        // start at 2 to skip headers
-        int i;
-        for (i = 2; i < this.filledSectorArray.size(); i++) {
-            if (this.filledSectorArray.get(i)) {
-                // sector filled
-                // if the length of the empty block we found is greater than or
-                // equal to the required length, and is closer to the required
-                // length than the previous found length, then set this as the
-                // new closest length.
-                // the idea is to use an empty block of exactly the required
-                // length, rather than one that is larger.
-                if (length >= requiredLength && length < closestLength) {
-                    closestLength = length;
-                    closestStart = start;
-                    // if we find an empty block of exactly the correct length
-                    // then exit the loop.
-                    if (closestLength == requiredLength) {
-                        break;
-                    }
-                }
-                length = 0;
-            } else {
-                // sector empty
-                if (length == 0) {
-                    start = i;
-                }
-                length++;
-            }
-        }
+        return (length + 5 + 4095) / 4096;
+    }
 
-        if (closestStart <= 0) {
-            // append to end of file
-            closestStart = i;
-        }
+    private int getStartSector(int chunkIndex) {
 
-        return new Section(closestStart, requiredLength);
+        final Section section = this.chunkSectionsArray[chunkIndex];
+        return section != null ? section.startSector : Integer.MAX_VALUE;
     }
 
-    // set the corresponding bits in filledSectorArray to 'filled'
-    // for 'count' sectors, starting at 'firstSector'.
-    private void setFilledSectorArray(Section section, boolean filled) {
+    private Section getChunkSection(int x, int z) {
 
-        final int endSector = section.startSector + section.length;
-        final int sectorsToAppend = endSector + 1 - this.filledSectorArray.size();
-        for (int i = 0; i < sectorsToAppend; i++) {
-            this.filledSectorArray.add(Boolean.valueOf(false));
-        }
-        for (int i = section.startSector; i < endSector; i++) {
-            if (filled && this.filledSectorArray.get(i)) {
-                MapWriterForge.LOGGER.error("sector {} already filled, possible chunk overlap", i);
-            }
-            this.filledSectorArray.set(i, Boolean.valueOf(filled));
-        }
+        return this.chunkSectionsArray[(z & 31) << 5 | x & 31];
     }
 
     private void updateChunkSection(int x, int z, Section newSection) throws IOException {
@@ -325,6 +709,11 @@ public class RegionFile {
         }
 
         this.chunkSectionsArray[chunkIndex] = newSection;
+
+        // update the timestamp of the chunk
+        this.timestampArray[chunkIndex] = getCurrentTimestamp();
+        this.fin.seek(4096 + chunkIndex * 4);
+        this.fin.writeInt(this.timestampArray[chunkIndex]);
     }
 
     /*
@@ -335,12 +724,31 @@ public class RegionFile {
      * }
      */
 
-    private void writeChunkDataToSection(Section section, byte[] compressedChunkData, int length) throws IOException {
+    // write the location and timestamp tables in one go
+    private void writeHeader() throws IOException {
+
+        final ByteBuffer header = ByteBuffer.allocate(8192);
+        for (int i = 0; i < 1024; i++) {
+            final Section section = this.chunkSectionsArray[i];
+            header.putInt(section != null && section.length > 0 ? section.getSectorAndSize() : 0);
+        }
+        for (int i = 0; i < 1024; i++) {
+            header.putInt(this.timestampArray[i]);
+        }
+        header.flip();
+        final FileChannel channel = this.fin.getChannel();
+        long position = 0;
+        while (header.hasRemaining()) {
+            position += channel.write(header, position);
+        }
+    }
+
+    private void writeChunkDataToSection(Section section, byte version, byte[] compressedChunkData, int length) throws IOException {
 
         this.fin.seek(section.startSector * 4096L);
         // write version and length
         this.fin.writeInt(length + 1);
-        this.fin.writeByte(2);
+        this.fin.writeByte(version);
         // write compressed data
         this.fin.write(compressedChunkData, 0, length);
 
@@ -350,7 +758,7 @@ public class RegionFile {
         }
     }
 
-    private boolean writeCompressedChunk(int x, int z, byte[] compressedChunkData, int length) {
+    private boolean writeCompressedChunk(int x, int z, byte version, byte[] compressedChunkData, int length) {
         // if larger than the existing chunk data or chunk does not exist then
         // need to find the
         // first possible file position to write to. This will either be a
@@ -362,14 +770,29 @@ public class RegionFile {
             MapWriterForge.LOGGER.warn("not writing chunk ({}, {}) with length {}", x, z, length);
             return true;
         }
+        if (this.readOnly) {
+            MapWriterForge.LOGGER.error("not writing chunk ({}, {}) to read only region file {}", x, z, this.file);
+            return true;
+        }
+
+        // the file is about to change, so the mapping is no longer valid
+        this.mappedBuffer = null;
 
-        // free the section this chunk currently occupies
         final Section currentSection = this.getChunkSection(x, z);
-        if (currentSection != null) {
-            this.setFilledSectorArray(currentSection, false);
+        if (this.batchWrites) {
+            final int chunkIndex = (z & 31) << 5 | x & 31;
+            if (this.pendingChunks[chunkIndex] == null) {
+                this.pendingCount++;
+            } else {
+                this.pendingBytes -= this.pendingChunks[chunkIndex].length;
+            }
+            // the data is in a buffer that will be reused, so keep a copy
+            this.pendingChunks[chunkIndex] = new PendingChunk(version, Arrays.copyOf(compressedChunkData, length), length);
+            this.pendingBytes += length;
+            return this.pendingBytes >= MAX_PENDING_BYTES && this.flushPendingChunks();
         }
 
-        final int requiredSectors = (length + 5 + 4095) / 4096;
+        final int requiredSectors = getRequiredSectors(length);
         Section newSection;
 
         if (currentSection != null && requiredSectors <= currentSection.length) {
@@ -378,20 +801,23 @@ public class RegionFile {
             // {}",
             // x, z, currentSection.startSector);
             newSection = new Section(currentSection.startSector, requiredSectors);
+            // free the sectors at the end that are no longer needed
+            this.sectors.free(currentSection.startSector + requiredSectors, currentSection.length - requiredSectors);
         } else {
-            // otherwise find a free section large enough to hold the chunk data
-            newSection = this.getFreeSection(requiredSectors);
+            // otherwise free the section this chunk currently occupies and
+            // find a free section large enough to hold the chunk data
+            if (currentSection != null) {
+                this.sectors.free(currentSection.startSector, currentSection.length);
+            }
+            newSection = new Section(this.sectors.allocate(requiredSectors), requiredSectors);
         }
 
-        // set the new section to filled
-        this.setFilledSectorArray(newSection, true);
-
         boolean error = true;
         try {
             // RegionManager.logInfo("writing {} bytes to sector {} for chunk
             // ({}, {})",
             // length, newSection.startSector, x, z);
-            this.writeChunkDataToSection(newSection, compressedChunkData, length);
+            this.writeChunkDataToSection(newSection, version, compressedChunkData, length);
             // update the header
             this.updateChunkSection(x, z, newSection);
             error = false;
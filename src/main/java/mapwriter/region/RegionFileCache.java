@@ -1,40 +1,75 @@
 package mapwriter.region;
 
+import mapwriter.config.Config;
+import mapwriter.forge.MapWriterForge;
 import net.minecraft.world.DimensionType;
 
 import java.io.File;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.Map;
 
+/*
+ * Keeps region files open between uses.
+ *
+ * There are two pools of open files. getRegionFile() returns read-write files
+ * and is used for saving chunks. acquireReadOnly() returns files opened with
+ * mode "r" for paths like rebuilding the map that never write. Each pool is
+ * its own LRU cache with a configurable size, and counts hits, misses and
+ * evictions.
+ *
+ * Getting a read-write file closes the read only file for the same path (or
+ * when it is released, if it is in use), because it would not see the writes.
+ * Asking for a read only file when a read-write file is already in the cache
+ * returns the read-write file.
+ *
+ * All methods are synchronized, so read only files can be acquired and
+ * released by worker threads. Files that have been acquired and not yet
+ * released are never closed by the cache, even if that means a pool holds
+ * more files than its limit for a while.
+ */
 public class RegionFileCache {
 
     // simple Least Recently Used (LRU) cache implementation
     class LruCache extends LinkedHashMap<String, RegionFile> {
         private static final long serialVersionUID = 1L;
-        static final int MAX_REGION_FILES_OPEN = 8;
 
-        public LruCache() {
+        final String name;
+        final int maxOpen;
+        long hits = 0;
+        long misses = 0;
+        long evictions = 0;
+
+        public LruCache(String name, int maxOpen) {
 
             // initial capacity, loading factor, true for access time ordering
-            super(MAX_REGION_FILES_OPEN * 2, 0.5f, true);
+            super(maxOpen * 2, 0.5f, true);
+            this.name = name;
+            this.maxOpen = Math.max(1, maxOpen);
         }
 
-        // called on every put and putAll call, the entry 'entry' is removed
-        // if this function returns true.
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<String, RegionFile> entry) {
-
-            boolean ret = false;
-            if (this.size() > MAX_REGION_FILES_OPEN) {
-                final RegionFile regionFile = entry.getValue();
-                regionFile.close();
-                ret = true;
+        // close the least recently used files that are not in use until the
+        // cache is within its size limit
+        void trim() {
+
+            final Iterator<RegionFile> it = this.values().iterator();
+            while (this.size() > this.maxOpen && it.hasNext()) {
+                final RegionFile regionFile = it.next();
+                if (regionFile.users == 0) {
+                    regionFile.close();
+                    it.remove();
+                    this.evictions++;
+                }
             }
-            return ret;
+        }
+
+        void printStats() {
+
+            MapWriterForge.LOGGER.info("{} region files: {} open (max {}), {} hits, {} misses, {} evictions", this.name, this.size(), this.maxOpen, this.hits, this.misses, this.evictions);
         }
     }
 
-    private final LruCache regionFileCache = new LruCache();
+    private final LruCache readWriteCache = new LruCache("read-write", Config.maxOpenRegionFiles);
+    private final LruCache readOnlyCache = new LruCache("read only", Config.maxOpenReadOnlyRegionFiles);
     private final File worldDir;
 
     public RegionFileCache(File worldDir) {
@@ -42,41 +77,149 @@ public class RegionFileCache {
         this.worldDir = worldDir;
     }
 
-    public void close() {
+    // get an open read only region file for the given block coordinates, or
+    // null if the file does not exist or cannot be opened.
+    // the file stays open until it is given back with release().
+    public synchronized RegionFile acquireReadOnly(int x, int z, DimensionType dimension) {
+
+        final File regionFilePath = this.getRegionFilePath(x, z, dimension);
+        final String key = regionFilePath.toString();
+        RegionFile regionFile = this.readWriteCache.get(key);
+        if (regionFile != null) {
+            if (!regionFile.isOpen() && (!regionFile.exists() || regionFile.open())) {
+                return null;
+            }
+            // readers must not see a half written batch
+            regionFile.flushPendingChunks();
+            this.readOnlyCache.hits++;
+        } else {
+            regionFile = this.readOnlyCache.get(key);
+            if (regionFile != null) {
+                this.readOnlyCache.hits++;
+            } else if (!regionFilePath.isFile()) {
+                return null;
+            } else {
+                this.readOnlyCache.misses++;
+                regionFile = new RegionFile(regionFilePath, Config.regionFileMemoryMapped, RegionFileCodec.Compression.fromConfigName(Config.regionFileCompression), true);
+                if (regionFile.open()) {
+                    return null;
+                }
+                this.readOnlyCache.put(key, regionFile);
+            }
+        }
+        regionFile.users++;
+        this.readOnlyCache.trim();
+        return regionFile;
+    }
+
+    public synchronized void close() {
 
-        for (final RegionFile regionFile : this.regionFileCache.values()) {
+        this.readWriteCache.printStats();
+        this.readOnlyCache.printStats();
+        for (final RegionFile regionFile : this.readWriteCache.values()) {
             regionFile.close();
         }
-        this.regionFileCache.clear();
+        this.readWriteCache.clear();
+        for (final RegionFile regionFile : this.readOnlyCache.values()) {
+            regionFile.close();
+        }
+        this.readOnlyCache.clear();
     }
 
-    public RegionFile getRegionFile(int x, int z, DimensionType dimension) {
+    // get the read-write region file for the given block coordinates, and
+    // keep it open until it is given back with release(). used to write
+    // chunks while other threads use the cache.
+    public synchronized RegionFile acquire(int x, int z, DimensionType dimension) {
+
+        final RegionFile regionFile = this.getRegionFile(x, z, dimension);
+        regionFile.users++;
+        return regionFile;
+    }
+
+    // get the read-write region file for the given block coordinates to
+    // compact it, or null if it is in use. the read only file for the same
+    // path is closed and unmapped first, as the file cannot be replaced while
+    // it is mapped on some systems. give it back with release().
+    public synchronized RegionFile acquireForCompaction(int x, int z, DimensionType dimension) {
+
+        final String key = this.getRegionFilePath(x, z, dimension).toString();
+        final RegionFile readOnlyFile = this.readOnlyCache.get(key);
+        if (readOnlyFile != null) {
+            if (readOnlyFile.users > 0) {
+                return null;
+            }
+            readOnlyFile.closeAndUnmap();
+            this.readOnlyCache.remove(key);
+        }
+        final RegionFile regionFile = this.getRegionFile(x, z, dimension);
+        if (regionFile.users > 0) {
+            return null;
+        }
+        regionFile.users++;
+        return regionFile;
+    }
+
+    public synchronized RegionFile getRegionFile(int x, int z, DimensionType dimension) {
 
         final File regionFilePath = this.getRegionFilePath(x, z, dimension);
         final String key = regionFilePath.toString();
-        RegionFile regionFile = this.regionFileCache.get(key);
-        if (regionFile == null) {
-            regionFile = new RegionFile(regionFilePath);
-            this.regionFileCache.put(key, regionFile);
+        RegionFile regionFile = this.readWriteCache.get(key);
+        if (regionFile != null) {
+            this.readWriteCache.hits++;
+        } else {
+            this.readWriteCache.misses++;
+            // the read only file would not see the chunks written from now on
+            final RegionFile readOnlyFile = this.readOnlyCache.get(key);
+            if (readOnlyFile != null && readOnlyFile.users == 0) {
+                readOnlyFile.close();
+                this.readOnlyCache.remove(key);
+            } else if (readOnlyFile != null) {
+                MapWriterForge.LOGGER.warn("region file {} is opened for writing while it is being read", regionFilePath);
+            }
+            regionFile = new RegionFile(regionFilePath, Config.regionFileMemoryMapped, RegionFileCodec.Compression.fromConfigName(Config.regionFileCompression));
+            this.readWriteCache.put(key, regionFile);
+            this.readWriteCache.trim();
         }
         return regionFile;
     }
 
-    public File getRegionFilePath(int x, int z, DimensionType dimension) {
+    public File getRegionDir(DimensionType dimension) {
 
         File dir = this.worldDir;
         if (dimension != DimensionType.OVERWORLD) {
             dir = new File(dir, "DIM" + dimension.getId());
         }
-        dir = new File(dir, "region");
+        return new File(dir, "region");
+    }
+
+    public File getRegionFilePath(int x, int z, DimensionType dimension) {
 
         final String filename = String.format("r.%d.%d.mca", x >> Region.SHIFT, z >> Region.SHIFT);
 
-        return new File(dir, filename);
+        return new File(this.getRegionDir(dimension), filename);
     }
 
     public boolean regionFileExists(int x, int z, DimensionType dimension) {
         final File regionFilePath = this.getRegionFilePath(x, z, dimension);
         return regionFilePath.isFile();
     }
+
+    // give back a file returned by acquire() or acquireReadOnly()
+    public synchronized void release(RegionFile regionFile) {
+
+        if (regionFile != null && regionFile.users > 0) {
+            regionFile.users--;
+            if (regionFile.isReadOnly()) {
+                // close it if the file was opened for writing while in use
+                final String key = regionFile.getFile().toString();
+                if (regionFile.users == 0 && this.readWriteCache.containsKey(key)) {
+                    regionFile.close();
+                    this.readOnlyCache.remove(key);
+                }
+                this.readOnlyCache.trim();
+            } else {
+                this.readWriteCache.trim();
+            }
+        }
+    }
 }
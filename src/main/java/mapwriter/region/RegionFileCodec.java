@@ -0,0 +1,323 @@
+package mapwriter.region;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Compresses and decompresses chunk data for region files.
+ *
+ * The version byte stored in front of each chunk selects the format:
+ *   2   zlib (the Minecraft format), at the default or fastest level
+ *   3   uncompressed
+ *   127 LZ4 block with the uncompressed length in front (MapWriter only, not
+ *       the LZ4 format used by newer Minecraft versions)
+ * Files can contain chunks in any mix of formats, so the compression setting
+ * can be changed at any time.
+ *
+ * Every thread gets its own instance (see get()) holding a Deflater, an
+ * Inflater and two byte buffers that only ever grow, so reading or writing a
+ * chunk does not create new zlib streams or buffers each time. Instances must
+ * only be used by the thread that got them.
+ *
+ * The chunk buffer holds the uncompressed data of one chunk and is handed out
+ * with acquireBuffer() / releaseBuffer(). If it is already in use (e.g. two
+ * chunk streams are open at the same time) callers fall back to a new array.
+ *
+ * zlib data in a ByteBuffer (a slice of a memory mapped region file) is given
+ * to the Inflater a few KiB at a time through a small input buffer, instead of
+ * copying the whole chunk to the heap first. Uncompressed and LZ4 data is
+ * copied, as it is needed in an array anyway.
+ */
+public class RegionFileCodec {
+
+    public enum Compression {
+        ZLIB("zlib", RegionFileCodec.VERSION_DEFLATE, Deflater.DEFAULT_COMPRESSION),
+        ZLIB_FAST("zlibFast", RegionFileCodec.VERSION_DEFLATE, Deflater.BEST_SPEED),
+        NONE("none", RegionFileCodec.VERSION_NONE, 0),
+        LZ4("lz4", RegionFileCodec.VERSION_LZ4, 0);
+
+        // returns the compression with the given config name, or ZLIB
+        public static Compression fromConfigName(String configName) {
+            for (final Compression compression : values()) {
+                if (compression.configName.equalsIgnoreCase(configName)) {
+                    return compression;
+                }
+            }
+            return ZLIB;
+        }
+
+        public final String configName;
+        public final byte version;
+        public final int level;
+
+        Compression(String configName, byte version, int level) {
+            this.configName = configName;
+            this.version = version;
+            this.level = level;
+        }
+    }
+
+    // the chunk input stream returned by inflate(), gives the chunk buffer back
+    // when it is closed.
+    private static class ChunkInputStream extends ByteArrayInputStream {
+        private final RegionFileCodec codec;
+        private final boolean pooled;
+
+        ChunkInputStream(RegionFileCodec codec, byte[] buf, int length, boolean pooled) {
+            super(buf, 0, length);
+            this.codec = codec;
+            this.pooled = pooled;
+        }
+
+        @Override
+        public void close() {
+            if (this.pooled && this.buf != null) {
+                this.codec.releaseBuffer(this.buf);
+            }
+            this.buf = null;
+            this.count = 0;
+            this.pos = 0;
+        }
+    }
+
+    public static final byte VERSION_DEFLATE = 2;
+    public static final byte VERSION_NONE = 3;
+    public static final byte VERSION_LZ4 = 127;
+
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    // how much compressed data is copied from a ByteBuffer at a time
+    private static final int INPUT_BUFFER_SIZE = 4 * 1024;
+
+    private static final ThreadLocal<RegionFileCodec> CODEC = ThreadLocal.withInitial(RegionFileCodec::new);
+
+    public static RegionFileCodec get() {
+        return CODEC.get();
+    }
+
+    public static boolean isSupportedVersion(int version) {
+        return version == VERSION_DEFLATE || version == VERSION_NONE || version == VERSION_LZ4;
+    }
+
+    // free the native zlib memory of the current thread's codec.
+    // should be called by threads that are done with region files.
+    public static void endCurrent() {
+        CODEC.get().end();
+        CODEC.remove();
+    }
+
+    private final Deflater deflater = new Deflater();
+    private final Inflater inflater = new Inflater();
+    private int[] lz4HashTable = null;
+
+    private byte[] chunkBuffer = new byte[INITIAL_BUFFER_SIZE];
+    private boolean chunkBufferInUse = false;
+
+    private byte[] compressedBuffer = new byte[INITIAL_BUFFER_SIZE >> 2];
+
+    private final byte[] inputBuffer = new byte[INPUT_BUFFER_SIZE];
+
+    // returns the shared chunk buffer, or null if it is already in use
+    public byte[] acquireBuffer() {
+        if (this.chunkBufferInUse) {
+            return null;
+        }
+        this.chunkBufferInUse = true;
+        return this.chunkBuffer;
+    }
+
+    // compress 'length' bytes of 'data'. the compressed data is written to
+    // the start of getCompressedBuffer() and its length is returned.
+    // compression.version has to be stored with the data.
+    public int compress(byte[] data, int length, Compression compression) {
+        switch (compression) {
+            case NONE:
+                System.arraycopy(data, 0, this.getCompressedBuffer(length), 0, length);
+                return length;
+            case LZ4:
+                final byte[] dst = this.getCompressedBuffer(4 + Lz4Block.maxCompressedLength(length));
+                if (this.lz4HashTable == null) {
+                    this.lz4HashTable = new int[Lz4Block.HASH_TABLE_SIZE];
+                }
+                dst[0] = (byte) (length >>> 24);
+                dst[1] = (byte) (length >>> 16);
+                dst[2] = (byte) (length >>> 8);
+                dst[3] = (byte) length;
+                return 4 + Lz4Block.compress(data, length, dst, 4, this.lz4HashTable);
+            default:
+                return this.deflate(data, length, compression.level);
+        }
+    }
+
+    // decompress data stored with the given version byte.
+    // the returned stream must be closed to make the chunk buffer available
+    // again.
+    public DataInputStream decompress(int version, byte[] data, int offset, int length) throws IOException {
+        switch (version) {
+            case VERSION_NONE:
+                return this.copy(data, offset, length);
+            case VERSION_LZ4:
+                return this.decompressLz4(data, offset, length);
+            case VERSION_DEFLATE:
+                return this.inflate(data, offset, length);
+            default:
+                throw new IOException("unsupported chunk data version " + version);
+        }
+    }
+
+    // decompress the remaining bytes of 'data'
+    public DataInputStream decompress(int version, ByteBuffer data) throws IOException {
+        switch (version) {
+            case VERSION_NONE:
+                final int length = data.remaining();
+                final boolean pooled = !this.chunkBufferInUse;
+                final byte[] buf = this.getChunkBuffer(length);
+                data.get(buf, 0, length);
+                return new DataInputStream(new ChunkInputStream(this, buf, length, pooled));
+            case VERSION_DEFLATE:
+                return this.inflate(null, 0, 0, data);
+            default:
+                final int compressedLength = data.remaining();
+                final byte[] compressed = this.getCompressedBuffer(compressedLength);
+                data.get(compressed, 0, compressedLength);
+                return this.decompress(version, compressed, 0, compressedLength);
+        }
+    }
+
+    private int deflate(byte[] data, int length, int level) {
+        this.deflater.setLevel(level);
+        this.deflater.reset();
+        this.deflater.setInput(data, 0, length);
+        this.deflater.finish();
+        int compressedLength = 0;
+        while (!this.deflater.finished()) {
+            if (compressedLength == this.compressedBuffer.length) {
+                this.compressedBuffer = Arrays.copyOf(this.compressedBuffer, compressedLength * 2);
+            }
+            compressedLength += this.deflater.deflate(this.compressedBuffer, compressedLength, this.compressedBuffer.length - compressedLength);
+        }
+        // don't keep a reference to the input data
+        this.deflater.reset();
+        return compressedLength;
+    }
+
+    public void end() {
+        this.deflater.end();
+        this.inflater.end();
+    }
+
+    // returns the buffer used for compressed data, growing it to at least
+    // 'length' bytes. the contents are only valid until the next call to a
+    // method of this codec.
+    public byte[] getCompressedBuffer(int length) {
+        if (length > this.compressedBuffer.length) {
+            this.compressedBuffer = new byte[Math.max(length, this.compressedBuffer.length * 2)];
+        }
+        return this.compressedBuffer;
+    }
+
+    public byte[] getCompressedBuffer() {
+        return this.compressedBuffer;
+    }
+
+    // returns the shared chunk buffer if it is free and at least 'length'
+    // bytes long, or a new buffer otherwise
+    private byte[] getChunkBuffer(int length) {
+        byte[] buf = this.acquireBuffer();
+        if (buf == null) {
+            buf = new byte[Math.max(length, INITIAL_BUFFER_SIZE)];
+        } else if (buf.length < length) {
+            // the larger buffer replaces the shared one when it is released
+            buf = new byte[Math.max(length, buf.length * 2)];
+        }
+        return buf;
+    }
+
+    private DataInputStream copy(byte[] data, int offset, int length) {
+        final boolean pooled = !this.chunkBufferInUse;
+        final byte[] buf = this.getChunkBuffer(length);
+        System.arraycopy(data, offset, buf, 0, length);
+        return new DataInputStream(new ChunkInputStream(this, buf, length, pooled));
+    }
+
+    private DataInputStream decompressLz4(byte[] data, int offset, int length) throws IOException {
+        if (length < 4) {
+            throw new EOFException("unexpected end of compressed chunk data");
+        }
+        final int uncompressedLength = (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16 | (data[offset + 2] & 0xff) << 8 | data[offset + 3] & 0xff;
+        final boolean pooled = !this.chunkBufferInUse;
+        final byte[] buf = this.getChunkBuffer(uncompressedLength);
+        try {
+            if (Lz4Block.decompress(data, offset + 4, length - 4, buf) != uncompressedLength) {
+                throw new IOException("LZ4 chunk data has the wrong length");
+            }
+        } catch (final IOException | IndexOutOfBoundsException e) {
+            if (pooled) {
+                this.releaseBuffer(buf);
+            }
+            throw e instanceof IOException ? (IOException) e : new IOException("corrupt LZ4 chunk data", e);
+        }
+        return new DataInputStream(new ChunkInputStream(this, buf, uncompressedLength, pooled));
+    }
+
+    private DataInputStream inflate(byte[] data, int offset, int length) throws IOException {
+        return this.inflate(data, offset, length, null);
+    }
+
+    // inflate 'length' bytes of 'data', or the remaining bytes of 'source' if
+    // it is not null
+    private DataInputStream inflate(byte[] data, int offset, int length, ByteBuffer source) throws IOException {
+        final boolean pooled = !this.chunkBufferInUse;
+        byte[] buf = this.getChunkBuffer(0);
+
+        int inflatedLength = 0;
+        try {
+            this.inflater.reset();
+            if (source == null) {
+                this.inflater.setInput(data, offset, length);
+            }
+            while (!this.inflater.finished()) {
+                if (source != null && this.inflater.needsInput() && source.hasRemaining()) {
+                    final int inputLength = Math.min(source.remaining(), this.inputBuffer.length);
+                    source.get(this.inputBuffer, 0, inputLength);
+                    this.inflater.setInput(this.inputBuffer, 0, inputLength);
+                }
+                if (inflatedLength == buf.length) {
+                    buf = Arrays.copyOf(buf, inflatedLength * 2);
+                }
+                final int count = this.inflater.inflate(buf, inflatedLength, buf.length - inflatedLength);
+                if (count == 0 && !this.inflater.finished() && (this.inflater.needsInput() || this.inflater.needsDictionary())) {
+                    throw new EOFException("unexpected end of compressed chunk data");
+                }
+                inflatedLength += count;
+            }
+        } catch (final DataFormatException e) {
+            if (pooled) {
+                this.releaseBuffer(buf);
+            }
+            throw new IOException(e);
+        } catch (final IOException e) {
+            if (pooled) {
+                this.releaseBuffer(buf);
+            }
+            throw e;
+        } finally {
+            this.inflater.reset();
+        }
+
+        return new DataInputStream(new ChunkInputStream(this, buf, inflatedLength, pooled));
+    }
+
+    // give the chunk buffer back. 'buf' may be a larger copy of the buffer
+    // returned by acquireBuffer(), in which case it replaces it.
+    public void releaseBuffer(byte[] buf) {
+        this.chunkBuffer = buf;
+        this.chunkBufferInUse = false;
+    }
+}
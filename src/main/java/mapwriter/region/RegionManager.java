@@ -6,8 +6,11 @@ import net.minecraft.world.DimensionType;
 import org.apache.logging.log4j.Logger;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -30,7 +33,10 @@ public class RegionManager {
         protected boolean removeEldestEntry(Map.Entry<Long, Region> entry) {
 
             boolean ret = false;
-            if (this.size() > MAX_LOADED_REGIONS) {
+            // regions being rebuilt are kept until they are done, and
+            // regions with changes not yet in the higher zoom levels until
+            // those are updated
+            if (this.size() > MAX_LOADED_REGIONS && !entry.getValue().pinned && entry.getValue().dirtyChunks == null) {
                 final Region region = entry.getValue();
                 region.close();
                 ret = true;
@@ -39,6 +45,11 @@ public class RegionManager {
         }
     }
 
+    // how long chunk updates are collected before the higher zoom levels are
+    // updated from them, and how many regions may have changes waiting
+    private static final long ZOOM_UPDATE_INTERVAL = 1000;
+    private static final int MAX_DIRTY_REGIONS = 16;
+
     public static Logger logger;
 
     private static int incrStatsCounter(Map<String, Integer> h, String key) {
@@ -61,6 +72,11 @@ public class RegionManager {
 
     public int minZoom;
 
+    // zoom level 0 regions with changes that are not in the higher zoom
+    // levels yet, and the time the first of them changed
+    private final List<Region> dirtyRegions = new ArrayList<>();
+    private long dirtySince = 0;
+
     public RegionManager(File worldDir, File imageDir, BlockColors blockColors, int minZoom, int maxZoom) {
 
         this.worldDir = worldDir;
@@ -72,8 +88,9 @@ public class RegionManager {
         this.maxZoom = maxZoom;
     }
 
-    public void close() {
+    public synchronized void close() {
 
+        this.updateZoomLevels();
         for (final Region region : this.regionMap.values()) {
             if (region != null) {
                 region.close();
@@ -81,10 +98,14 @@ public class RegionManager {
         }
         this.regionMap.clear();
         this.regionFileCache.close();
+        // the region manager is closed on a background thread, so this frees
+        // the compression buffers used by that thread. the other background
+        // threads free theirs when they stop.
+        RegionFileCodec.endCurrent();
     }
 
     // must not return null
-    public Region getRegion(int x, int z, int zoomLevel, DimensionType dimension) {
+    public synchronized Region getRegion(int x, int z, int zoomLevel, DimensionType dimension) {
 
         Region region = this.regionMap.get(Region.getKey(x, z, zoomLevel, dimension));
         if (region == null) {
@@ -95,7 +116,7 @@ public class RegionManager {
         return region;
     }
 
-    public void printLoadedRegionStats() {
+    public synchronized void printLoadedRegionStats() {
 
         MapWriterForge.LOGGER.info("loaded region listing:");
         final Map<String, Integer> stats = new HashMap<>();
@@ -111,7 +132,16 @@ public class RegionManager {
         }
     }
 
-    public void rebuildRegions(int xStart, int zStart, int w, int h, DimensionType dimension) {
+    public int rebuildRegions(int xStart, int zStart, int w, int h, DimensionType dimension) {
+        return this.rebuildRegions(xStart, zStart, w, h, dimension, false);
+    }
+
+    // if incremental is set only chunks that were written to the region file
+    // after the region image was last rebuilt are rendered again. regions
+    // without an image or render stamp are always fully rebuilt.
+    // the chunks are rendered in parallel, see RegionRebuilder.
+    // returns the number of chunks rendered.
+    public int rebuildRegions(int xStart, int zStart, int w, int h, DimensionType dimension, boolean incremental) {
         // read all zoom level 0 regions
         // then find all regions with a backing image at zoom level 0
 
@@ -122,27 +152,69 @@ public class RegionManager {
 
         MapWriterForge.LOGGER.info("rebuilding regions from ({}, {}) to ({}, {})", xStart, zStart, xStart + w, zStart + h);
 
-        for (int rX = xStart; rX < xStart + w; rX += Region.SIZE) {
-            for (int rZ = zStart; rZ < zStart + h; rZ += Region.SIZE) {
-                final Region region = this.getRegion(rX, rZ, 0, dimension);
-                if (this.regionFileCache.regionFileExists(rX, rZ, dimension)) {
-                    region.clear();
-                    for (int cz = 0; cz < 32; cz++) {
-                        for (int cx = 0; cx < 32; cx++) {
-                            // load chunk from anvil file
-                            final MapWriterChunk chunk = MapWriterChunk.read((region.x >> 4) + cx, (region.z >> 4) + cz, region.dimension, this.regionFileCache);
-                            region.updateChunk(chunk);
-                        }
+        return new RegionRebuilder(this, incremental).rebuild(xStart, zStart, w, h, dimension);
+    }
+
+    // true if the higher zoom levels should be updated from the chunk
+    // updates collected so far
+    public synchronized boolean isZoomUpdateDue() {
+
+        return !this.dirtyRegions.isEmpty() && (this.dirtyRegions.size() >= MAX_DIRTY_REGIONS || System.currentTimeMillis() - this.dirtySince >= ZOOM_UPDATE_INTERVAL);
+    }
+
+    // returns the regions with changes not in the higher zoom levels yet, and
+    // forgets them. call Region.updateDirtyZoomLevels() on each of them.
+    public synchronized List<Region> takeDirtyRegions() {
+
+        final List<Region> regions = new ArrayList<>(this.dirtyRegions);
+        this.dirtyRegions.clear();
+        return regions;
+    }
+
+    // render a chunk into its zoom level 0 region.
+    // the higher zoom levels are not updated for every chunk. the changed area
+    // of each region is collected, and the zoom levels are updated from it
+    // once it is due (see isZoomUpdateDue()), when a zoomed out view is
+    // loaded, or when the region manager is closed.
+    // chunks of different regions can be updated by several threads at once.
+    public void updateChunk(MapWriterChunk chunk) {
+
+        this.updateChunks(Collections.singletonList(chunk));
+    }
+
+    // render chunks that are all in the same region, looking up and pinning
+    // the region only once
+    public void updateChunks(List<MapWriterChunk> chunks) {
+
+        final MapWriterChunk first = chunks.get(0);
+        final Region region;
+        synchronized (this) {
+            region = this.getRegion(first.x << 4, first.z << 4, 0, first.dimension);
+            // keep the region from being closed while it is rendered
+            region.pinned = true;
+        }
+        try {
+            for (final MapWriterChunk chunk : chunks) {
+                region.updateChunk(chunk);
+            }
+        } finally {
+            synchronized (this) {
+                region.pinned = false;
+                if (region.dirtyChunks != null && !this.dirtyRegions.contains(region)) {
+                    if (this.dirtyRegions.isEmpty()) {
+                        this.dirtySince = System.currentTimeMillis();
                     }
+                    this.dirtyRegions.add(region);
                 }
-                region.updateZoomLevels();
             }
         }
     }
 
-    public void updateChunk(MapWriterChunk chunk) {
+    // update the higher zoom levels from all collected chunk updates
+    public void updateZoomLevels() {
 
-        final Region region = this.getRegion(chunk.x << 4, chunk.z << 4, 0, chunk.dimension);
-        region.updateChunk(chunk);
+        for (final Region region : this.takeDirtyRegions()) {
+            region.updateDirtyZoomLevels();
+        }
     }
 }
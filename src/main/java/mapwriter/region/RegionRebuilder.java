@@ -0,0 +1,211 @@
+package mapwriter.region;
+
+import mapwriter.forge.MapWriterForge;
+import net.minecraft.world.DimensionType;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Rebuilds the zoom level 0 images of an area of regions from the region files
+ * on a fork join pool.
+ *
+ * Each region is a task that loads the region image and then forks one task
+ * per row of 32 chunks, which reads, decompresses, parses and renders its
+ * chunks. The rows write to different parts of the pixel array, so they need
+ * no locking.
+ *
+ * RegionManager is not thread safe and is only used by the thread calling
+ * rebuild(). It submits the regions in the same order as
+ * the serial rebuild did and waits for them in that order, updating the zoom
+ * levels of each region after it is done. The higher zoom level images
+ * therefore get the same updates in the same order as before.
+ *
+ * The pool is shared by all rebuilds. Its threads stop when they have been
+ * idle for a while, and free their RegionFileCodec when they do.
+ *
+ * Only IN_FLIGHT_REGIONS regions are submitted at a time. Their region files
+ * are acquired read only from the RegionFileCache, which keeps them open until
+ * they are released, and the regions themselves are pinned in the
+ * RegionManager cache while they are being rendered.
+ */
+class RegionRebuilder {
+
+    private class RegionTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final Region region;
+        final RegionFile regionFile;
+        // which chunks were rendered, indexed by (cz << 5) | cx
+        final boolean[] rendered = new boolean[1024];
+        boolean incrementalRegion = false;
+
+        RegionTask(Region region, RegionFile regionFile) {
+            this.region = region;
+            this.regionFile = regionFile;
+        }
+
+        @Override
+        protected void compute() {
+            final SurfacePixels surfacePixels = this.region.surfacePixels;
+            final int renderStamp = surfacePixels.getRenderStamp();
+            this.incrementalRegion = RegionRebuilder.this.incremental && renderStamp != 0 && surfacePixels.getPixels() != null;
+            final int newRenderStamp = RegionFile.getCurrentTimestamp();
+            if (!this.incrementalRegion) {
+                surfacePixels.clear();
+            }
+            // allocate the pixels before the rows use them
+            surfacePixels.getOrAllocatePixels();
+
+            final List<RowTask> rows = new ArrayList<>(32);
+            for (int cz = 0; cz < 32; cz++) {
+                rows.add(new RowTask(this, cz, renderStamp));
+            }
+            invokeAll(rows);
+
+            int count = 0;
+            for (final boolean chunkRendered : this.rendered) {
+                if (chunkRendered) {
+                    count++;
+                }
+            }
+            surfacePixels.addUpdates(count);
+            surfacePixels.setRenderStamp(newRenderStamp);
+        }
+    }
+
+    private class RowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final RegionTask regionTask;
+        final int cz;
+        final int renderStamp;
+
+        RowTask(RegionTask regionTask, int cz, int renderStamp) {
+            this.regionTask = regionTask;
+            this.cz = cz;
+            this.renderStamp = renderStamp;
+        }
+
+        @Override
+        protected void compute() {
+            final Region region = this.regionTask.region;
+            final RegionFile regionFile = this.regionTask.regionFile;
+            for (int cx = 0; cx < 32; cx++) {
+                if (!this.regionTask.incrementalRegion || regionFile.getChunkTimestamp(cx, this.cz) >= this.renderStamp) {
+                    // load chunk from anvil file
+                    final MapWriterChunk chunk = MapWriterChunk.read((region.x >> 4) + cx, (region.z >> 4) + this.cz, region.dimension, regionFile);
+                    region.surfacePixels.renderChunk(chunk);
+                    this.regionTask.rendered[this.cz << 5 | cx] = true;
+                }
+            }
+        }
+    }
+
+    private static final int IN_FLIGHT_REGIONS = 4;
+
+    // leave a core for the game
+    private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(THREADS, pool -> {
+        final ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+            @Override
+            protected void onTermination(Throwable exception) {
+                RegionFileCodec.endCurrent();
+                super.onTermination(exception);
+            }
+        };
+        thread.setName("MapWriter rebuild " + thread.getPoolIndex());
+        return thread;
+    }, null, false);
+
+    private final RegionManager regionManager;
+    private final boolean incremental;
+    private final ArrayDeque<RegionTask> inFlight = new ArrayDeque<>();
+    private int regionCount = 0;
+    private int chunkCount = 0;
+
+    RegionRebuilder(RegionManager regionManager, boolean incremental) {
+        this.regionManager = regionManager;
+        this.incremental = incremental;
+    }
+
+    // rebuild the regions in the given area (region aligned, in blocks).
+    // returns the number of chunks rendered.
+    int rebuild(int xStart, int zStart, int w, int h, DimensionType dimension) {
+        final int total = (w >> Region.SHIFT) * (h >> Region.SHIFT);
+        try {
+            for (int rX = xStart; rX < xStart + w; rX += Region.SIZE) {
+                for (int rZ = zStart; rZ < zStart + h; rZ += Region.SIZE) {
+                    final Region region = this.regionManager.getRegion(rX, rZ, 0, dimension);
+                    if (this.inFlight.size() >= IN_FLIGHT_REGIONS) {
+                        this.finish(this.inFlight.poll(), total);
+                    }
+                    final RegionFile regionFile = this.regionManager.regionFileCache.acquireReadOnly(rX, rZ, dimension);
+                    if (regionFile != null) {
+                        final RegionTask task = new RegionTask(region, regionFile);
+                        region.pinned = true;
+                        this.inFlight.add(task);
+                        POOL.execute(task);
+                    } else {
+                        // keep the zoom level updates in order
+                        while (!this.inFlight.isEmpty()) {
+                            this.finish(this.inFlight.poll(), total);
+                        }
+                        region.updateZoomLevels();
+                        this.regionCount++;
+                    }
+                }
+            }
+            while (!this.inFlight.isEmpty()) {
+                this.finish(this.inFlight.poll(), total);
+            }
+        } finally {
+            // after an exception, wait for the tasks that are still running
+            // before their regions and files are given back
+            for (final RegionTask task : this.inFlight) {
+                task.cancel(false);
+                task.quietlyJoin();
+            }
+            for (final RegionTask task : this.inFlight) {
+                task.region.pinned = false;
+                this.regionManager.regionFileCache.release(task.regionFile);
+            }
+            this.inFlight.clear();
+        }
+        return this.chunkCount;
+    }
+
+    // wait for a region to be rendered and update its zoom levels
+    private void finish(RegionTask task, int total) {
+        final Region region = task.region;
+        try {
+            task.join();
+            if (task.incrementalRegion) {
+                // only the rendered chunks changed
+                for (int i = 0; i < task.rendered.length; i++) {
+                    if (task.rendered[i]) {
+                        region.updateZoomLevels(region.x + ((i & 31) << 4), region.z + (i >> 5 << 4), MapWriterChunk.SIZE, MapWriterChunk.SIZE);
+                        this.chunkCount++;
+                    }
+                }
+            } else {
+                region.updateZoomLevels();
+                this.chunkCount += task.rendered.length;
+            }
+        } catch (final RuntimeException e) {
+            MapWriterForge.LOGGER.error("could not rebuild region {}: {}", region, e);
+        } finally {
+            region.pinned = false;
+            this.regionManager.regionFileCache.release(task.regionFile);
+        }
+        this.regionCount++;
+        if ((this.regionCount & 15) == 0) {
+            MapWriterForge.LOGGER.info("rebuilt {} of {} regions", this.regionCount, total);
+        }
+    }
+}
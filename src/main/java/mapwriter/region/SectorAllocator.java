@@ -0,0 +1,276 @@
+package mapwriter.region;
+
+import java.util.Arrays;
+
+/*
+ * Keeps track of which 4096 byte sectors of a region file are in use.
+ *
+ * Filled sectors are stored in a bitset. Every maximal run of free sectors
+ * between the header and the end of the used area is also kept in a free run
+ * index, so that finding a place for a chunk does not have to scan the file.
+ * The index is a set of doubly linked lists (one per run length, with all runs
+ * of MAX_BUCKET sectors or more sharing the last list) stored in int arrays
+ * indexed by the first sector of the run, plus a bitmask of the non empty
+ * lists. Allocating and freeing sectors therefore never allocates objects,
+ * apart from growing the arrays when the file grows.
+ *
+ * Sectors past the end of the used area are not part of the index. Chunks that
+ * do not fit in any free run are appended there, and freeing the last chunk in
+ * the file moves the end back.
+ */
+public class SectorAllocator {
+    // sectors 0 and 1 hold the chunk location and timestamp tables
+    public static final int HEADER_SECTORS = 2;
+
+    private static final int MAX_BUCKET = 256;
+    private static final int NONE = -1;
+
+    private long[] filled = new long[0];
+    private int capacity = 0;
+    // one past the last filled sector
+    private int end = HEADER_SECTORS;
+    // number of sectors in the free run index
+    private int freeSectors = 0;
+
+    // free run index, all indexed by sector
+    private int[] runLength = new int[0]; // at the first sector of a run
+    private int[] runStart = new int[0]; // at the last sector of a run
+    private int[] runNext = new int[0];
+    private int[] runPrev = new int[0];
+
+    private final int[] bucketHead = new int[MAX_BUCKET + 1];
+    private final long[] bucketMask = new long[(MAX_BUCKET >> 6) + 1];
+
+    public SectorAllocator() {
+
+        this.ensureCapacity(64);
+        this.setRange(0, HEADER_SECTORS, true);
+        this.clearFreeRuns();
+    }
+
+    // find a run of free sectors for a chunk 'length' sectors long, mark it as
+    // filled and return the first sector of the run.
+    // uses the smallest free run that is long enough, or appends to the end of
+    // the used area if there is none.
+    public int allocate(int length) {
+
+        int start = NONE;
+        for (int bucket = this.nextBucket(Math.min(length, MAX_BUCKET)); bucket != NONE && start == NONE; bucket = this.nextBucket(bucket + 1)) {
+            for (int s = this.bucketHead[bucket]; s != NONE; s = this.runNext[s]) {
+                if (this.runLength[s] >= length) {
+                    start = s;
+                    break;
+                }
+            }
+        }
+
+        if (start != NONE) {
+            final int freeLength = this.runLength[start];
+            this.removeRun(start);
+            if (freeLength > length) {
+                this.addRun(start + length, freeLength - length);
+            }
+        } else {
+            start = this.end;
+            this.ensureCapacity(start + length);
+            this.end = start + length;
+        }
+        this.setRange(start, start + length, true);
+        return start;
+    }
+
+    // mark 'length' sectors starting at 'start' as free, merging them with
+    // the free runs on either side.
+    public void free(int start, int length) {
+
+        start = Math.max(start, HEADER_SECTORS);
+        length = Math.min(length, this.end - start);
+        if (length <= 0) {
+            return;
+        }
+        this.setRange(start, start + length, false);
+
+        int runStart = start;
+        int runEnd = start + length;
+        if (runStart > HEADER_SECTORS && !this.isFilled(runStart - 1)) {
+            runStart = this.runStart[runStart - 1];
+            this.removeRun(runStart);
+        }
+        if (runEnd < this.end && !this.isFilled(runEnd)) {
+            final int nextLength = this.runLength[runEnd];
+            this.removeRun(runEnd);
+            runEnd += nextLength;
+        }
+
+        if (runEnd >= this.end) {
+            // nothing is stored after this run, so just shrink the used area
+            this.end = runStart;
+        } else {
+            this.addRun(runStart, runEnd - runStart);
+        }
+    }
+
+    public int getEnd() {
+
+        return this.end;
+    }
+
+    // free sectors between the header and the end of the used area
+    public int getFreeSectors() {
+
+        return this.freeSectors;
+    }
+
+    public boolean isFilled(int sector) {
+
+        return sector < this.capacity && (this.filled[sector >> 6] & 1L << sector) != 0;
+    }
+
+    // mark sectors as filled without updating the free run index.
+    // used while reading the chunk table, rebuildFreeRuns() must be called
+    // afterwards.
+    public void markFilled(int start, int length) {
+
+        this.ensureCapacity(start + length);
+        this.setRange(start, start + length, true);
+        this.end = Math.max(this.end, start + length);
+    }
+
+    // returns true if any of the sectors in the given range are filled
+    public boolean overlaps(int start, int length) {
+
+        final int endSector = Math.min(start + length, this.capacity);
+        for (int i = start; i < endSector; i++) {
+            if (this.isFilled(i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void rebuildFreeRuns() {
+
+        this.clearFreeRuns();
+        int start = this.nextClearBit(HEADER_SECTORS);
+        while (start < this.end) {
+            final int runEnd = Math.min(this.nextSetBit(start), this.end);
+            this.addRun(start, runEnd - start);
+            start = this.nextClearBit(runEnd);
+        }
+    }
+
+    private void addRun(int start, int length) {
+
+        final int bucket = Math.min(length, MAX_BUCKET);
+        this.runLength[start] = length;
+        this.runStart[start + length - 1] = start;
+        this.runPrev[start] = NONE;
+        this.runNext[start] = this.bucketHead[bucket];
+        if (this.bucketHead[bucket] != NONE) {
+            this.runPrev[this.bucketHead[bucket]] = start;
+        }
+        this.bucketHead[bucket] = start;
+        this.bucketMask[bucket >> 6] |= 1L << bucket;
+        this.freeSectors += length;
+    }
+
+    private void clearFreeRuns() {
+
+        Arrays.fill(this.bucketHead, NONE);
+        Arrays.fill(this.bucketMask, 0L);
+        Arrays.fill(this.runLength, 0);
+        this.freeSectors = 0;
+    }
+
+    private void ensureCapacity(int sectors) {
+
+        if (sectors > this.capacity) {
+            final int newCapacity = Math.max(sectors + 63 & -64, this.capacity * 2);
+            this.filled = Arrays.copyOf(this.filled, newCapacity >> 6);
+            this.runLength = Arrays.copyOf(this.runLength, newCapacity);
+            this.runStart = Arrays.copyOf(this.runStart, newCapacity);
+            this.runNext = Arrays.copyOf(this.runNext, newCapacity);
+            this.runPrev = Arrays.copyOf(this.runPrev, newCapacity);
+            this.capacity = newCapacity;
+        }
+    }
+
+    // index of the first non empty bucket >= 'bucket', or NONE
+    private int nextBucket(int bucket) {
+
+        for (int i = bucket >> 6; i < this.bucketMask.length && bucket <= MAX_BUCKET; i++) {
+            final long word = i == bucket >> 6 ? this.bucketMask[i] & -1L << bucket : this.bucketMask[i];
+            if (word != 0) {
+                return (i << 6) + Long.numberOfTrailingZeros(word);
+            }
+        }
+        return NONE;
+    }
+
+    private int nextClearBit(int sector) {
+
+        int i = sector >> 6;
+        if (i >= this.filled.length) {
+            return sector;
+        }
+        long word = ~this.filled[i] & -1L << sector;
+        while (word == 0) {
+            if (++i == this.filled.length) {
+                return this.capacity;
+            }
+            word = ~this.filled[i];
+        }
+        return (i << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    private int nextSetBit(int sector) {
+
+        int i = sector >> 6;
+        if (i >= this.filled.length) {
+            return this.capacity;
+        }
+        long word = this.filled[i] & -1L << sector;
+        while (word == 0) {
+            if (++i == this.filled.length) {
+                return this.capacity;
+            }
+            word = this.filled[i];
+        }
+        return (i << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    private void removeRun(int start) {
+
+        final int bucket = Math.min(this.runLength[start], MAX_BUCKET);
+        final int prev = this.runPrev[start];
+        final int next = this.runNext[start];
+        if (prev != NONE) {
+            this.runNext[prev] = next;
+        } else {
+            this.bucketHead[bucket] = next;
+            if (next == NONE) {
+                this.bucketMask[bucket >> 6] &= ~(1L << bucket);
+            }
+        }
+        if (next != NONE) {
+            this.runPrev[next] = prev;
+        }
+        this.freeSectors -= this.runLength[start];
+        this.runLength[start] = 0;
+    }
+
+    private void setRange(int start, int endSector, boolean value) {
+
+        for (int i = start; i < endSector; ) {
+            final int word = i >> 6;
+            final int wordEnd = Math.min(endSector, word + 1 << 6);
+            final long mask = (wordEnd - i == 64 ? -1L : (1L << wordEnd - i) - 1) << i;
+            if (value) {
+                this.filled[word] |= mask;
+            } else {
+                this.filled[word] &= ~mask;
+            }
+            i = wordEnd;
+        }
+    }
+}
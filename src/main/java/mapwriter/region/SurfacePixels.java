@@ -1,16 +1,24 @@
 package mapwriter.region;
 
+import mapwriter.config.Config;
 import mapwriter.forge.MapWriterForge;
+import mapwriter.util.BlockColors;
 import net.minecraft.world.DimensionType;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
 import java.util.Arrays;
 
 public class SurfacePixels {
 
+    // red and blue channels, and green channel, of a packed RGB pixel.
+    // the channels are summed in place, with red and blue added in the same
+    // operation. the sum of four 8 bit values fits in the 8 bits of space
+    // above each channel, so the channels never carry into each other.
+    private static final int MASK_RB = 0x00ff00ff;
+    private static final int MASK_G = 0x0000ff00;
+
     // get the averaged color of a 2x2 pixel area in the given pixels
     public static int getAverageOfPixelQuad(int[] pixels, int offset, int scanSize) {
 
@@ -20,13 +28,9 @@ public class SurfacePixels {
         final int p11 = pixels[offset + scanSize + 1];
 
         // ignore alpha channel
-        int r = (p00 >> 16 & 0xff) + (p01 >> 16 & 0xff) + (p10 >> 16 & 0xff) + (p11 >> 16 & 0xff);
-        r >>= 2;
-        int g = (p00 >> 8 & 0xff) + (p01 >> 8 & 0xff) + (p10 >> 8 & 0xff) + (p11 >> 8 & 0xff);
-        g >>= 2;
-        int b = (p00 & 0xff) + (p01 & 0xff) + (p10 & 0xff) + (p11 & 0xff);
-        b >>= 2;
-        return 0xff000000 | (r & 0xff) << 16 | (g & 0xff) << 8 | b & 0xff;
+        final int rb = (p00 & MASK_RB) + (p01 & MASK_RB) + (p10 & MASK_RB) + (p11 & MASK_RB);
+        final int g = (p00 & MASK_G) + (p01 & MASK_G) + (p10 & MASK_G) + (p11 & MASK_G);
+        return 0xff000000 | rb >> 2 & MASK_RB | g >> 2 & MASK_G;
     }
 
     public static int[] loadImage(File filename, int w, int h) {
@@ -60,8 +64,32 @@ public class SurfacePixels {
         }
     }
 
+    // the render stamp of a region image is the time (in region file
+    // timestamp format) up to which the image is known to contain the chunks
+    // of the region file. it is stored in a file next to the image.
+    public static int loadRenderStamp(File filename) {
+        int renderStamp = 0;
+        if (filename.isFile()) {
+            try (DataInputStream dis = new DataInputStream(new FileInputStream(filename))) {
+                renderStamp = dis.readInt();
+            } catch (final IOException e) {
+                MapWriterForge.LOGGER.warn("loadRenderStamp: could not read render stamp from {}", filename);
+            }
+        }
+        return renderStamp;
+    }
+
+    public static void saveRenderStamp(File filename, int renderStamp) {
+        try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(filename))) {
+            dos.writeInt(renderStamp);
+        } catch (final IOException e) {
+            MapWriterForge.LOGGER.error("saveRenderStamp: error: could not write render stamp to {}", filename);
+        }
+    }
+
     protected Region region;
     protected File filename;
+    protected File renderStampFilename;
 
     protected int[] pixels = null;
 
@@ -69,25 +97,28 @@ public class SurfacePixels {
 
     protected int updateCount = 0;
 
+    protected int renderStamp = 0;
+
     public SurfacePixels(Region region, File filename) {
         this.region = region;
         this.filename = filename;
+        this.renderStampFilename = new File(filename.getParentFile(), filename.getName().replaceFirst("\\.png$", "") + ".stamp");
     }
 
-    public void clear() {
+    public synchronized void clear() {
         if (this.pixels != null) {
             Arrays.fill(this.pixels, 0);
         }
     }
 
-    public void close() {
+    public synchronized void close() {
         if (this.updateCount > 0) {
             this.save();
         }
         this.pixels = null;
     }
 
-    public int[] getOrAllocatePixels() {
+    public synchronized int[] getOrAllocatePixels() {
         this.getPixels();
         if (this.pixels == null) {
             this.pixels = new int[Region.SIZE * Region.SIZE];
@@ -96,40 +127,71 @@ public class SurfacePixels {
         return this.pixels;
     }
 
-    public int[] getPixels() {
+    public synchronized int getRenderStamp() {
+        this.getPixels();
+        return this.renderStamp;
+    }
+
+    // synchronized, as regions of higher zoom levels can be loaded by several
+    // threads copying them to the map texture
+    public synchronized int[] getPixels() {
         if (this.pixels == null) {
             this.load();
         }
         return this.pixels;
     }
 
+    public void setRenderStamp(int renderStamp) {
+        this.renderStamp = renderStamp;
+    }
+
+    // count updates made with renderChunk(), so that the image gets saved
+    public void addUpdates(int count) {
+        this.updateCount += count;
+    }
+
     public void updateChunk(MapWriterChunk chunk) {
+        this.renderChunk(chunk);
+        // the zoom levels are updated later, see RegionManager.updateChunk()
+        this.region.addDirtyChunk(chunk.x, chunk.z);
+        this.updateCount++;
+    }
+
+    // render a chunk without updating the zoom levels or the update count.
+    // different chunks of the region can be rendered by several threads at
+    // once, as long as getOrAllocatePixels() was called before.
+    public void renderChunk(MapWriterChunk chunk) {
         final int x = chunk.x << 4;
         final int z = chunk.z << 4;
         final int offset = this.region.getPixelOffset(x, z);
         final int[] pixels = this.getOrAllocatePixels();
-        // TODO: refactor so that blockColors can be accessed
-        // more directly
-        ChunkRender.renderSurface(this.region.regionManager.blockColors, chunk, pixels, offset, Region.SIZE, chunk.dimension == DimensionType.NETHER // use
-                // ceiling
-                // algorithm
-                // for
-                // nether
-        );
-        this.region.updateZoomLevels(x, z, MapWriterChunk.SIZE, MapWriterChunk.SIZE);
-        this.updateCount++;
+        final BlockColors blockColors = this.region.regionManager.blockColors;
+        final ChunkRender chunkRender = new ChunkRender(blockColors, blockColors, Config.moreRealisticMap);
+        // use the ceiling algorithm for the nether
+        chunkRender.renderSurface(chunk, pixels, offset, Region.SIZE, chunk.dimension == DimensionType.NETHER);
     }
 
     // update an area of pixels in this region from an area of pixels in
     // srcPixels,
     // scaling the pixels by 50%.
-    public void updateScaled(int[] srcPixels, int srcX, int srcZ, int dstX, int dstZ, int dstW, int dstH) {
+    // synchronized, as the zoom levels of neighbouring regions can be updated
+    // by several threads and scale down into the same region.
+    public synchronized void updateScaled(int[] srcPixels, int srcX, int srcZ, int dstX, int dstZ, int dstW, int dstH) {
         final int[] dstPixels = this.getOrAllocatePixels();
         for (int j = 0; j < dstH; j++) {
-            for (int i = 0; i < dstW; i++) {
-                final int srcOffset = (srcZ + j * 2 << Region.SHIFT) + srcX + i * 2;
-                final int dstPixel = getAverageOfPixelQuad(srcPixels, srcOffset, Region.SIZE);
-                dstPixels[(dstZ + j << Region.SHIFT) + dstX + i] = dstPixel;
+            // same as getAverageOfPixelQuad, walking two source rows at once
+            int src0 = (srcZ + j * 2 << Region.SHIFT) + srcX;
+            int src1 = src0 + Region.SIZE;
+            int dst = (dstZ + j << Region.SHIFT) + dstX;
+            final int dstEnd = dst + dstW;
+            for (; dst < dstEnd; dst++, src0 += 2, src1 += 2) {
+                final int p00 = srcPixels[src0];
+                final int p01 = srcPixels[src0 + 1];
+                final int p10 = srcPixels[src1];
+                final int p11 = srcPixels[src1 + 1];
+                final int rb = (p00 & MASK_RB) + (p01 & MASK_RB) + (p10 & MASK_RB) + (p11 & MASK_RB);
+                final int g = (p00 & MASK_G) + (p01 & MASK_G) + (p10 & MASK_G) + (p11 & MASK_G);
+                dstPixels[dst] = 0xff000000 | rb >> 2 & MASK_RB | g >> 2 & MASK_G;
             }
         }
         this.updateCount++;
@@ -138,7 +200,9 @@ public class SurfacePixels {
     private void load() {
         if (!this.cannotLoad) {
             this.pixels = loadImage(this.filename, Region.SIZE, Region.SIZE);
+            this.renderStamp = 0;
             if (this.pixels != null) {
+                this.renderStamp = loadRenderStamp(this.renderStampFilename);
                 // set opaque black pixels to transparent so that
                 // background texture shows
                 for (int i = 0; i < this.pixels.length; i++) {
@@ -157,6 +221,9 @@ public class SurfacePixels {
     private void save() {
         if (this.pixels != null) {
             saveImage(this.filename, this.pixels, Region.SIZE, Region.SIZE);
+            if (this.renderStamp != 0) {
+                saveRenderStamp(this.renderStampFilename, this.renderStamp);
+            }
             this.cannotLoad = false;
         }
         this.updateCount = 0;
@@ -0,0 +1,145 @@
+package mapwriter.tasks;
+
+import net.minecraft.world.DimensionType;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Keeps track of the chunk tasks that are waiting or running, so that tasks for
+ * a chunk that already has a waiting task are merged into it.
+ *
+ * Every task in the table has a Slot holding the data it will work on. The
+ * slot goes through these states:
+ *   waiting  the slot holds the latest data for the chunk. offer() replaces it
+ *            with newer data, so the task uses the latest data (latest wins).
+ *   taken    the task has started and taken the data with take(). offer()
+ *            puts a new slot for the chunk in the table, and the caller has to
+ *            queue a new task for it.
+ *   removed  the task is done and its slot was removed with remove().
+ * The data is swapped atomically, so new data is either seen by the task or
+ * gets a task of its own, it is never lost.
+ *
+ * The table is an open addressing hash table keyed by primitive longs (see
+ * getKey()), so looking up a chunk does not box its key. offer() and remove()
+ * are called from the main thread, take() from the background threads.
+ */
+public class ChunkTaskTable<D> {
+
+    public static class Slot<D> {
+        private final long key;
+        // the data, null once the task has taken it
+        private final AtomicReference<D> data;
+
+        Slot(long key, D data) {
+            this.key = key;
+            this.data = new AtomicReference<>(data);
+        }
+    }
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // a key for the chunk at chunkX, chunkZ of the dimension. chunk
+    // coordinates fit in 24 bits within the world border.
+    public static long getKey(int chunkX, int chunkZ, DimensionType dimension) {
+        return (long) (dimension.getId() & 0xffff) << 48 | (long) (chunkZ & 0xffffff) << 24 | chunkX & 0xffffff;
+    }
+
+    private static int hash(long key) {
+        key *= 0x9e3779b97f4a7c15L;
+        return (int) (key ^ key >>> 32);
+    }
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+    // a null slot marks an empty entry
+    @SuppressWarnings("unchecked")
+    private Slot<D>[] slots = new Slot[INITIAL_CAPACITY];
+    private int size = 0;
+
+    // replace the data of the waiting task for the key with 'data'.
+    // returns null if there was a waiting task, or the slot for a new task
+    // otherwise.
+    public synchronized Slot<D> offer(long key, D data) {
+        final int index = this.indexOf(key);
+        if (index >= 0) {
+            final Slot<D> slot = this.slots[index];
+            D current;
+            while ((current = slot.data.get()) != null) {
+                if (slot.data.compareAndSet(current, data)) {
+                    return null;
+                }
+            }
+            // the task has already started, replace it with a new one
+            this.slots[index] = new Slot<>(key, data);
+            return this.slots[index];
+        }
+
+        if ((this.size + 1) * 2 > this.slots.length) {
+            this.resize(this.slots.length * 2);
+        }
+        final int mask = this.slots.length - 1;
+        int i = hash(key) & mask;
+        while (this.slots[i] != null) {
+            i = i + 1 & mask;
+        }
+        this.keys[i] = key;
+        this.slots[i] = new Slot<>(key, data);
+        this.size++;
+        return this.slots[i];
+    }
+
+    // take the latest data of the slot, called by the task when it starts.
+    // data offered after this goes to a new task.
+    public D take(Slot<D> slot) {
+        return slot.data.getAndSet(null);
+    }
+
+    // remove the slot from the table, unless it has already been replaced by
+    // the slot of a newer task
+    public synchronized void remove(Slot<D> slot) {
+        int i = this.indexOf(slot.key);
+        if (i < 0 || this.slots[i] != slot) {
+            return;
+        }
+        // shift the following entries of the probe sequence back into the gap
+        final int mask = this.slots.length - 1;
+        for (int j = i + 1 & mask; this.slots[j] != null; j = j + 1 & mask) {
+            final int home = hash(this.keys[j]) & mask;
+            if ((j - home & mask) >= (j - i & mask)) {
+                this.keys[i] = this.keys[j];
+                this.slots[i] = this.slots[j];
+                i = j;
+            }
+        }
+        this.slots[i] = null;
+        this.size--;
+    }
+
+    private int indexOf(long key) {
+        final int mask = this.slots.length - 1;
+        for (int i = hash(key) & mask; this.slots[i] != null; i = i + 1 & mask) {
+            if (this.keys[i] == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void resize(int capacity) {
+        final long[] oldKeys = this.keys;
+        final Slot<D>[] oldSlots = this.slots;
+        this.keys = new long[capacity];
+        this.slots = new Slot[capacity];
+        final int mask = capacity - 1;
+        for (int j = 0; j < oldSlots.length; j++) {
+            if (oldSlots[j] != null) {
+                int i = hash(oldKeys[j]) & mask;
+                while (this.slots[i] != null) {
+                    i = i + 1 & mask;
+                }
+                this.keys[i] = oldKeys[j];
+                this.slots[i] = oldSlots[j];
+            }
+        }
+    }
+}
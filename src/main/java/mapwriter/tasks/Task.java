@@ -4,6 +4,20 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
 public abstract class Task implements Runnable {
+    // the order in which BackgroundExecutor starts waiting tasks
+    public enum Priority {
+        // map views the player is waiting for
+        VIEW,
+        // rendering chunks and zoom levels of the visible map
+        RENDER,
+        // saving chunks and regions, and all other tasks
+        PERSISTENCE
+    }
+
+    // sequence key of tasks that are ordered with all other tasks, see
+    // BackgroundExecutor
+    public static final long SEQUENTIAL = Long.MIN_VALUE;
+
     // the task stores its own future
     private Future<?> future = null;
 
@@ -19,9 +33,23 @@ public abstract class Task implements Runnable {
         return this.future != null && this.future.isDone();
     }
 
-    // called by processTaskQueue after the thread completes
+    // called on the main thread by processTaskQueue after the thread completes
     public abstract void onComplete();
 
+    // tasks of a higher priority are started before waiting tasks of lower
+    // priorities that were added earlier. tasks that must see the results of
+    // earlier saves or other PERSISTENCE tasks must keep this priority.
+    public Priority getPriority() {
+        return Priority.PERSISTENCE;
+    }
+
+    // tasks with the same key run one after another, tasks with different
+    // keys may run at the same time. tasks that only use the data of one
+    // region can return its key, all others must return SEQUENTIAL.
+    public long getSequenceKey() {
+        return SEQUENTIAL;
+    }
+
     public final void printException() {
         if (this.future != null) {
             try {
@@ -0,0 +1,81 @@
+package mapwriter.tasks;
+
+import mapwriter.forge.MapWriterForge;
+import mapwriter.region.Region;
+import mapwriter.region.RegionFile;
+import mapwriter.region.RegionManager;
+import mapwriter.util.Utils;
+import net.minecraft.client.resources.I18n;
+import net.minecraft.world.DimensionType;
+
+import java.io.File;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class TaskCompactRegionFiles extends Task {
+    private static final Pattern REGION_FILE_PATTERN = Pattern.compile("r\\.(-?\\d+)\\.(-?\\d+)\\.mca");
+
+    final RegionManager regionManager;
+    final DimensionType dimension;
+    int fileCount = 0;
+    long reclaimedBytes = 0;
+
+    public TaskCompactRegionFiles(RegionManager regionManager, DimensionType dimension) {
+        this.regionManager = regionManager;
+        this.dimension = dimension;
+    }
+
+    @Override
+    public boolean checkForDuplicate() {
+        return false;
+    }
+
+    @Override
+    public void onComplete() {
+        Utils.printBoth(I18n.format("mw.task.compactregionstask.chatmsg.done", this.fileCount, this.reclaimedBytes / 1024));
+    }
+
+    @Override
+    public void run() {
+        final File[] files = this.regionManager.regionFileCache.getRegionDir(this.dimension).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (final File file : files) {
+            final Matcher matcher = REGION_FILE_PATTERN.matcher(file.getName());
+            if (!matcher.matches()) {
+                continue;
+            }
+            // go through the cache so that open region files are compacted
+            // using their current state. files that are in use are skipped.
+            final int x = Integer.parseInt(matcher.group(1)) << Region.SHIFT;
+            final int z = Integer.parseInt(matcher.group(2)) << Region.SHIFT;
+            final RegionFile regionFile = this.regionManager.regionFileCache.acquireForCompaction(x, z, this.dimension);
+            if (regionFile == null) {
+                MapWriterForge.LOGGER.info("not compacting region file {}, it is in use", file);
+                continue;
+            }
+            try {
+                this.compact(file, regionFile);
+            } finally {
+                this.regionManager.regionFileCache.release(regionFile);
+            }
+        }
+    }
+
+    private void compact(File file, RegionFile regionFile) {
+        if (!regionFile.isOpen() && regionFile.open()) {
+            return;
+        }
+        final double fragmentation = regionFile.getFragmentation();
+        if (fragmentation > 0.0) {
+            final long oldLength = file.length();
+            final long reclaimed = regionFile.compact();
+            if (reclaimed >= 0) {
+                MapWriterForge.LOGGER.info("compacted region file {}: {} -> {} bytes ({}% fragmented)", file, oldLength, oldLength - reclaimed, Math.round(fragmentation * 100.0));
+                this.reclaimedBytes += reclaimed;
+                this.fileCount++;
+            }
+        }
+    }
+}
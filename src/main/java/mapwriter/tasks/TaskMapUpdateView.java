@@ -23,6 +23,11 @@ public class TaskMapUpdateView extends Task {
         return false;
     }
 
+    @Override
+    public Priority getPriority() {
+        return Priority.VIEW;
+    }
+
     @Override
     public void onComplete() {
         // set currentView in mapTexture to requestedView
@@ -2,6 +2,7 @@ package mapwriter.tasks;
 
 import mapwriter.util.BlockColors;
 import mapwriter.MapWriter;
+import mapwriter.config.Config;
 import mapwriter.region.RegionManager;
 import mapwriter.util.Utils;
 import net.minecraft.client.resources.I18n;
@@ -13,7 +14,10 @@ public class TaskRebuildRegions extends Task {
     final BlockColors blockColors;
     final int x, z, w, h;
     final DimensionType dimension;
+    final boolean incremental;
     String msg = "";
+    int chunkCount = 0;
+    long duration = 0;
 
     public TaskRebuildRegions(MapWriter mw, int x, int z, int w, int h, DimensionType dimension) {
         this.regionManager = mw.regionManager;
@@ -23,6 +27,7 @@ public class TaskRebuildRegions extends Task {
         this.w = w;
         this.h = h;
         this.dimension = dimension;
+        this.incremental = Config.incrementalRebuild;
     }
 
     @Override
@@ -33,11 +38,14 @@ public class TaskRebuildRegions extends Task {
     @Override
     public void onComplete() {
         Utils.printBoth(I18n.format("mw.task.rebuildregionstask.chatmsg.rebuild.compleet"));
+        Utils.printBoth(I18n.format("mw.task.rebuildregionstask.chatmsg.rebuild.stats", this.chunkCount, this.duration / 1000.0));
     }
 
     @Override
     public void run() {
         this.regionManager.blockColors = this.blockColors;
-        this.regionManager.rebuildRegions(this.x, this.z, this.w, this.h, this.dimension);
+        final long start = System.currentTimeMillis();
+        this.chunkCount = this.regionManager.rebuildRegions(this.x, this.z, this.w, this.h, this.dimension, this.incremental);
+        this.duration = System.currentTimeMillis() - start;
     }
 }
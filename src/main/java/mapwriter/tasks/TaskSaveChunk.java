@@ -1,56 +1,43 @@
 package mapwriter.tasks;
 
 import mapwriter.region.MapWriterChunk;
+import mapwriter.region.Region;
 import mapwriter.region.RegionManager;
 
-import java.util.HashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
-
 public class TaskSaveChunk extends Task {
-    private static HashMap<Long, TaskSaveChunk> chunksUpdating = new HashMap<>();
+    private static final ChunkTaskTable<MapWriterChunk> chunksUpdating = new ChunkTaskTable<>();
     private MapWriterChunk chunk;
-    private RegionManager regionManager;
-    private final AtomicBoolean running = new AtomicBoolean();
+    private final RegionManager regionManager;
+    private ChunkTaskTable.Slot<MapWriterChunk> slot;
 
     public TaskSaveChunk(MapWriterChunk chunk, RegionManager regionManager) {
         this.chunk = chunk;
         this.regionManager = regionManager;
     }
 
+    // if a save of the chunk is already waiting it saves this chunk data
+    // instead
     @Override
     public boolean checkForDuplicate() {
-        final Long coords = this.chunk.getCoordIntPair();
+        this.slot = TaskSaveChunk.chunksUpdating.offer(ChunkTaskTable.getKey(this.chunk.x, this.chunk.z, this.chunk.dimension), this.chunk);
+        return this.slot == null;
+    }
 
-        if (!TaskSaveChunk.chunksUpdating.containsKey(coords)) {
-            TaskSaveChunk.chunksUpdating.put(coords, this);
-            return false;
-        } else {
-            final TaskSaveChunk task2 = TaskSaveChunk.chunksUpdating.get(coords);
-            if (!task2.running.get()) {
-                task2.updateChunkData(this.chunk, this.regionManager);
-            } else {
-                TaskSaveChunk.chunksUpdating.put(coords, this);
-                return false;
-            }
-        }
-        return true;
+    // saves of different regions can run at the same time
+    @Override
+    public long getSequenceKey() {
+        return Region.getKey(this.chunk.x << 4, this.chunk.z << 4, 0, this.chunk.dimension);
     }
 
     @Override
     public void onComplete() {
-        final Long coords = this.chunk.getCoordIntPair();
-        TaskSaveChunk.chunksUpdating.remove(coords);
-        this.running.set(false);
+        TaskSaveChunk.chunksUpdating.remove(this.slot);
     }
 
     @Override
     public void run() {
-        this.running.set(true);
+        // the latest data for the chunk
+        this.chunk = TaskSaveChunk.chunksUpdating.take(this.slot);
         this.chunk.write(this.regionManager.regionFileCache);
     }
-
-    public void updateChunkData(MapWriterChunk chunk, RegionManager regionManager) {
-        this.chunk = chunk;
-        this.regionManager = regionManager;
-    }
 }
@@ -0,0 +1,58 @@
+package mapwriter.tasks;
+
+import mapwriter.forge.MapWriterForge;
+import mapwriter.region.MapWriterChunk;
+import mapwriter.region.Region;
+import mapwriter.region.RegionFile;
+import mapwriter.region.RegionFileCache;
+import mapwriter.region.RegionManager;
+
+import java.util.List;
+
+public class TaskSaveChunkBatch extends Task {
+    private final List<MapWriterChunk> chunks;
+    private final RegionManager regionManager;
+
+    // saves the chunks of one region with batched region file writes. used
+    // when a lot of chunks are saved at once, e.g. when leaving a world.
+    public TaskSaveChunkBatch(List<MapWriterChunk> chunks, RegionManager regionManager) {
+        this.chunks = chunks;
+        this.regionManager = regionManager;
+    }
+
+    @Override
+    public boolean checkForDuplicate() {
+        return false;
+    }
+
+    // batches of different regions can run at the same time
+    @Override
+    public long getSequenceKey() {
+        final MapWriterChunk chunk = this.chunks.get(0);
+        return Region.getKey(chunk.x << 4, chunk.z << 4, 0, chunk.dimension);
+    }
+
+    @Override
+    public void onComplete() {}
+
+    @Override
+    public void run() {
+        final RegionFileCache regionFileCache = this.regionManager.regionFileCache;
+        final MapWriterChunk first = this.chunks.get(0);
+        // keep the region file open, so the chunks are all queued in it
+        final RegionFile regionFile = regionFileCache.acquire(first.x << 4, first.z << 4, first.dimension);
+        boolean error = false;
+        regionFile.setBatchWrites(true);
+        try {
+            for (final MapWriterChunk chunk : this.chunks) {
+                error |= chunk.write(regionFileCache);
+            }
+        } finally {
+            error |= regionFile.setBatchWrites(false);
+            regionFileCache.release(regionFile);
+        }
+        if (error) {
+            MapWriterForge.LOGGER.error("could not save all of the {} chunks in the batch for region file {}", this.chunks.size(), regionFile.getFile());
+        }
+    }
+}
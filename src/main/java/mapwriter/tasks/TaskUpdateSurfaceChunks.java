@@ -3,64 +3,83 @@ package mapwriter.tasks;
 import mapwriter.MapWriter;
 import mapwriter.map.MapTexture;
 import mapwriter.region.MapWriterChunk;
+import mapwriter.region.Region;
 import mapwriter.region.RegionManager;
-import net.minecraft.util.math.ChunkPos;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.ArrayList;
+import java.util.List;
 
 public class TaskUpdateSurfaceChunks extends Task {
-    private static Map<Long, TaskUpdateSurfaceChunks> chunksUpdating = new HashMap<>();
-    private MapWriterChunk chunk;
+    private static final ChunkTaskTable<MapWriterChunk> chunksUpdating = new ChunkTaskTable<>();
+    private final List<MapWriterChunk> chunks;
     private final RegionManager regionManager;
     private final MapTexture mapTexture;
-    private final AtomicBoolean running = new AtomicBoolean();
+    private final long regionKey;
+    private final List<ChunkTaskTable.Slot<MapWriterChunk>> slots;
 
-    public TaskUpdateSurfaceChunks(MapWriter mw, MapWriterChunk chunk) {
+    // renders a batch of chunks that are all in the same region. the region
+    // and the map texture are only updated once for the whole batch.
+    public TaskUpdateSurfaceChunks(MapWriter mw, List<MapWriterChunk> chunks) {
         this.mapTexture = mw.mapTexture;
         this.regionManager = mw.regionManager;
-        this.chunk = chunk;
+        this.chunks = chunks;
+        final MapWriterChunk first = chunks.get(0);
+        this.regionKey = Region.getKey(first.x << 4, first.z << 4, 0, first.dimension);
+        this.slots = new ArrayList<>(chunks.size());
     }
 
+    // chunks that already have an update waiting are rendered by that task,
+    // using the chunk data of this task. the task is a duplicate if all of
+    // its chunks are.
     @Override
     public boolean checkForDuplicate() {
-        final Long coords = ChunkPos.asLong(this.chunk.x, this.chunk.z);
-
-        if (!TaskUpdateSurfaceChunks.chunksUpdating.containsKey(coords)) {
-            TaskUpdateSurfaceChunks.chunksUpdating.put(coords, this);
-            return false;
-        } else {
-            final TaskUpdateSurfaceChunks task2 = TaskUpdateSurfaceChunks.chunksUpdating.get(coords);
-            if (!task2.running.get()) {
-                task2.updateChunkData(this.chunk);
-            } else {
-                TaskUpdateSurfaceChunks.chunksUpdating.put(coords, this);
-                return false;
+        for (final MapWriterChunk chunk : this.chunks) {
+            final ChunkTaskTable.Slot<MapWriterChunk> slot = TaskUpdateSurfaceChunks.chunksUpdating.offer(ChunkTaskTable.getKey(chunk.x, chunk.z, chunk.dimension), chunk);
+            if (slot != null) {
+                this.slots.add(slot);
             }
         }
-        return true;
+        return this.slots.isEmpty();
+    }
+
+    @Override
+    public Priority getPriority() {
+        return Priority.RENDER;
+    }
+
+    // chunks of different regions can be rendered at the same time
+    @Override
+    public long getSequenceKey() {
+        return this.regionKey;
     }
 
     @Override
     public void onComplete() {
-        final Long coords = this.chunk.getCoordIntPair();
-        TaskUpdateSurfaceChunks.chunksUpdating.remove(coords);
-        this.running.set(false);
+        for (final ChunkTaskTable.Slot<MapWriterChunk> slot : this.slots) {
+            TaskUpdateSurfaceChunks.chunksUpdating.remove(slot);
+        }
     }
 
     @Override
     public void run() {
-        this.running.set(true);
-        if (this.chunk != null) {
-            // update the chunk in the region pixels
-            this.regionManager.updateChunk(this.chunk);
-            // copy updated region pixels to maptexture
-            this.mapTexture.updateArea(this.chunk.x << 4, this.chunk.z << 4, MapWriterChunk.SIZE, MapWriterChunk.SIZE, this.chunk.dimension);
+        // the latest data for each chunk
+        final List<MapWriterChunk> chunks = new ArrayList<>(this.slots.size());
+        int minX = Integer.MAX_VALUE;
+        int minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxZ = Integer.MIN_VALUE;
+        for (final ChunkTaskTable.Slot<MapWriterChunk> slot : this.slots) {
+            final MapWriterChunk chunk = TaskUpdateSurfaceChunks.chunksUpdating.take(slot);
+            chunks.add(chunk);
+            minX = Math.min(minX, chunk.x);
+            minZ = Math.min(minZ, chunk.z);
+            maxX = Math.max(maxX, chunk.x);
+            maxZ = Math.max(maxZ, chunk.z);
         }
-    }
 
-    public void updateChunkData(MapWriterChunk chunk) {
-        this.chunk = chunk;
+        // update the chunks in the region pixels
+        this.regionManager.updateChunks(chunks);
+        // copy the updated area of the region pixels to maptexture
+        this.mapTexture.updateArea(minX << 4, minZ << 4, maxX - minX + 1 << 4, maxZ - minZ + 1 << 4, chunks.get(0).dimension);
     }
 }
@@ -0,0 +1,44 @@
+package mapwriter.tasks;
+
+import mapwriter.MapWriter;
+import mapwriter.map.MapTexture;
+import mapwriter.region.Region;
+
+public class TaskUpdateZoomLevels extends Task {
+    private final Region region;
+    private final MapTexture mapTexture;
+
+    // update the zoomed out regions and texture once for all the chunks of
+    // the region updated since the last time
+    public TaskUpdateZoomLevels(MapWriter mw, Region region) {
+        this.mapTexture = mw.mapTexture;
+        this.region = region;
+    }
+
+    // the region was taken from the dirty regions of the region manager, so
+    // there is only one task for it until it changes again
+    @Override
+    public boolean checkForDuplicate() {
+        return false;
+    }
+
+    @Override
+    public Priority getPriority() {
+        return Priority.RENDER;
+    }
+
+    // runs after the chunk updates of the region queued before it, and at
+    // the same time as the updates of other regions
+    @Override
+    public long getSequenceKey() {
+        return this.region.key;
+    }
+
+    @Override
+    public void onComplete() {}
+
+    @Override
+    public void run() {
+        this.mapTexture.updateZoomLevels(this.region);
+    }
+}
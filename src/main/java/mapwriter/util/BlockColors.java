@@ -1,40 +1,92 @@
 package mapwriter.util;
 
 import mapwriter.forge.MapWriterForge;
+import mapwriter.region.BiomeTintSource;
+import mapwriter.region.BlockColorTable;
 import net.minecraft.block.Block;
+import net.minecraft.block.BlockDoublePlant;
+import net.minecraft.block.material.Material;
 import net.minecraft.block.state.IBlockState;
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.renderer.color.IBlockColor;
 import net.minecraft.client.renderer.texture.TextureAtlasSprite;
 import net.minecraft.client.renderer.texture.TextureMap;
+import net.minecraft.init.Biomes;
+import net.minecraft.init.Blocks;
 import net.minecraft.util.EnumBlockRenderType;
-import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.MathHelper;
 import net.minecraft.world.ColorizerFoliage;
 import net.minecraft.world.ColorizerGrass;
-import net.minecraft.world.World;
 import net.minecraft.world.biome.Biome;
 import net.minecraftforge.registries.IRegistryDelegate;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
-public class BlockColors {
+/*
+ * Block colors for the map renderer.
+ *
+ * The colors of all block states are kept in a dense int array indexed by
+ * the block state ID (Block.BLOCK_STATE_IDS), so looking up a color is a
+ * single array read. A parallel int array holds the tint of each state.
+ *
+ * The tint of a state is resolved when the tables are built (see getTint()):
+ * water, grass and foliage colors depend on the biome and are looked up in a
+ * table of biome colors indexed by biome ID, other tints (redstone, stems,
+ * spruce and birch leaves) only depend on the state and are stored as they
+ * are. The renderer can then tint blocks from
+ * the biome IDs of the chunk without touching the live world.
+ *
+ * States without an ID (which are never stored in chunks) fall back to a
+ * map. The tables are rebuilt and then swapped in by loadColorData(), so the
+ * background thread always sees a complete table.
+ *
+ * This is the BlockColorTable and BiomeTintSource the map textures pass to
+ * ChunkRender.
+ */
+public class BlockColors implements BlockColorTable, BiomeTintSource {
+    private static final int LILY_PAD_COLOR = 0x208030;
+
+    private static final BiomeColors DEFAULT_BIOME_COLORS = new BiomeColors(0xffffff, 0x91bd59, 0x77ab2f);
+
     private final Map<TextureAtlasSprite, Integer> averageSpriteColors = new HashMap<>();
-    private final Map<IBlockState, Integer> stateColors = new HashMap<>();
+    // colors of states that have no state ID
+    private volatile Map<IBlockState, Integer> stateColors = new HashMap<>();
     private final Map<Biome, BiomeColors> biomeColors = new HashMap<>();
     private Map<IRegistryDelegate<Block>, IBlockColor> blockColorMap;
 
-    public int getColorModifier(IBlockState state, World world, BlockPos pos) {
-        if (blockColorMap.containsKey(state.getBlock().delegate)) {
-            return blockColorMap.get(state.getBlock().delegate).colorMultiplier(state, world, pos, 0);
-        }
+    // ARGB color and tint of each block state, indexed by state ID
+    private volatile int[] stateIdColors = new int[0];
+    private volatile int[] stateIdTints = new int[0];
+    // indexed by biome ID, never contains null
+    private volatile BiomeColors[] biomeColorsById = createBiomeColorsArray();
+
+    private static BiomeColors[] createBiomeColorsArray() {
+        final BiomeColors[] array = new BiomeColors[256];
+        Arrays.fill(array, DEFAULT_BIOME_COLORS);
+        return array;
+    }
+
+    public static int getStateId(IBlockState state) {
+        return Block.BLOCK_STATE_IDS.get(state);
+    }
 
-        // Default behavior is white, which doesn't change the color.
-        return 0xffffff;
+    // the colors of the biome with the given ID, the default colors for
+    // unknown biomes
+    @Override
+    public BiomeColors getBiomeColors(int biomeId) {
+        return this.biomeColorsById[biomeId & 255];
     }
 
+    @Override
     public int getStateColor(IBlockState state) {
+        final int id = getStateId(state);
+        final int[] colors = this.stateIdColors;
+        if (id >= 0 && id < colors.length) {
+            return colors[id];
+        }
+
         // Invisible blocks should be skipped. (return 0)
         if (state.getRenderType() == EnumBlockRenderType.INVISIBLE) {
             return 0;
@@ -43,11 +95,22 @@ public class BlockColors {
         return this.stateColors.getOrDefault(state, 0);
     }
 
+    // tint of the state, TINT_NONE for untinted blocks
+    @Override
+    public int getStateTint(IBlockState state) {
+        final int id = getStateId(state);
+        final int[] tints = this.stateIdTints;
+        return id >= 0 && id < tints.length ? tints[id] : TINT_NONE;
+    }
+
     public void loadColorData() {
         long time = System.currentTimeMillis();
         this.generateColorAverages();
         MapWriterForge.LOGGER.info("Generating color averages. Took {}ms.", System.currentTimeMillis() - time);
 
+        // needed for the tints
+        blockColorMap = TextureUtils.getBlockColors();
+
         time = System.currentTimeMillis();
         this.generateBlockStateColors();
         MapWriterForge.LOGGER.info("Generating BlockState colors. Took {}ms.", System.currentTimeMillis() - time);
@@ -55,8 +118,6 @@ public class BlockColors {
         time = System.currentTimeMillis();
         this.generateBiomeColors();
         MapWriterForge.LOGGER.info("Generating Biome colors. Took {}ms.", System.currentTimeMillis() - time);
-
-        blockColorMap = TextureUtils.getBlockColors();
     }
 
     private void generateColorAverages() {
@@ -70,15 +131,37 @@ public class BlockColors {
     }
 
     private void generateBlockStateColors() {
-        this.stateColors.clear();
+        int maxId = -1;
+        for (final IBlockState state : Block.BLOCK_STATE_IDS) {
+            maxId = Math.max(maxId, getStateId(state));
+        }
+        final int[] colors = new int[maxId + 1];
+        final int[] tints = new int[maxId + 1];
+        Arrays.fill(tints, TINT_NONE);
+        final int grassColor = ColorizerGrass.getGrassColor(0.5, 1.0) & 0xffffff;
+        final int foliageColor = ColorizerFoliage.getFoliageColorBasic() & 0xffffff;
+        final Map<IBlockState, Integer> otherColors = new HashMap<>();
+
         for (final Block block : Block.REGISTRY) {
+            final IBlockColor blockColor = this.blockColorMap.get(block.delegate);
             for (final IBlockState state : block.getBlockState().getValidStates()) {
-                if (state != null && state.getRenderType() != EnumBlockRenderType.INVISIBLE) {
+                if (state == null) {
+                    continue;
+                }
+                final int id = getStateId(state);
+                if (id >= 0 && blockColor != null) {
+                    tints[id] = getTint(state, blockColor, grassColor, foliageColor);
+                }
+                if (state.getRenderType() != EnumBlockRenderType.INVISIBLE) {
                     try {
                         TextureAtlasSprite icon = Minecraft.getMinecraft().getBlockRendererDispatcher().getBlockModelShapes().getTexture(state);
                         Integer color = this.averageSpriteColors.get(icon);
                         if (color != null) {
-                            this.stateColors.put(state, color);
+                            if (id >= 0) {
+                                colors[id] = color;
+                            } else {
+                                otherColors.put(state, color);
+                            }
                         }
                     } catch (final Exception e) {
                         MapWriterForge.LOGGER.trace(e);
@@ -86,10 +169,54 @@ public class BlockColors {
                 }
             }
         }
+
+        this.stateColors = otherColors;
+        this.stateIdTints = tints;
+        this.stateIdColors = colors;
+    }
+
+    // work out which biome color an IBlockColor uses. the vanilla blocks
+    // tinted with a biome color are known. for the others the color returned
+    // without a world is used: the vanilla handlers return the default grass
+    // or foliage color for blocks tinted with those (e.g. oak leaves), a fixed
+    // color for blocks that do not depend on the world (e.g. spruce leaves),
+    // and -1 when they need the world to pick a color.
+    private static int getTint(IBlockState state, IBlockColor blockColor, int grassColor, int foliageColor) {
+        final Block block = state.getBlock();
+        if (state.getMaterial() == Material.WATER) {
+            return TINT_WATER << 24;
+        } else if (block == Blocks.GRASS || block == Blocks.TALLGRASS || block == Blocks.REEDS) {
+            return TINT_GRASS << 24;
+        } else if (block == Blocks.DOUBLE_PLANT) {
+            final BlockDoublePlant.EnumPlantType type = state.getValue(BlockDoublePlant.VARIANT);
+            return type == BlockDoublePlant.EnumPlantType.GRASS || type == BlockDoublePlant.EnumPlantType.FERN ? TINT_GRASS << 24 : TINT_NONE;
+        } else if (block == Blocks.VINE) {
+            return TINT_FOLIAGE << 24;
+        } else if (block == Blocks.WATERLILY) {
+            // the color the vanilla handler uses in a world
+            return TINT_FIXED << 24 | LILY_PAD_COLOR;
+        }
+
+        final int color;
+        try {
+            color = blockColor.colorMultiplier(state, null, null, 0);
+        } catch (final Exception e) {
+            MapWriterForge.LOGGER.trace(e);
+            return TINT_NONE;
+        }
+        if (color == -1) {
+            return TINT_NONE;
+        } else if ((color & 0xffffff) == foliageColor) {
+            return TINT_FOLIAGE << 24;
+        } else if ((color & 0xffffff) == grassColor) {
+            return TINT_GRASS << 24;
+        }
+        return TINT_FIXED << 24 | color & 0xffffff;
     }
 
     private void generateBiomeColors() {
         this.biomeColors.clear();
+        final BiomeColors[] byId = createBiomeColorsArray();
         for (final Biome biome : Biome.REGISTRY) {
             try {
                 final double temp = MathHelper.clamp(biome.getDefaultTemperature(), 0.0F, 1.0F);
@@ -97,10 +224,26 @@ public class BlockColors {
                 final int grassColor = ColorizerGrass.getGrassColor(temp, rain);
                 final int foliageColor = ColorizerFoliage.getFoliageColor(temp, rain);
                 final int waterColor = biome.getWaterColorMultiplier();
-                this.biomeColors.put(biome, new BiomeColors(waterColor, grassColor, foliageColor));
+                final BiomeColors colors = new BiomeColors(waterColor & 0xffffff, grassColor & 0xffffff, foliageColor & 0xffffff);
+                this.biomeColors.put(biome, colors);
+                final int id = Biome.getIdForBiome(biome);
+                if (id >= 0 && id < byId.length) {
+                    byId[id] = colors;
+                }
             } catch (final Exception e) {
                 MapWriterForge.LOGGER.trace(e);
             }
         }
+
+        // unknown biomes (like ID 255, not generated yet) look like plains
+        final BiomeColors plains = this.biomeColors.get(Biomes.PLAINS);
+        if (plains != null) {
+            for (int i = 0; i < byId.length; i++) {
+                if (byId[i] == DEFAULT_BIOME_COLORS) {
+                    byId[i] = plains;
+                }
+            }
+        }
+        this.biomeColorsById = byId;
     }
 }